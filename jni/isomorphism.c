@@ -1,3 +1,4 @@
+#include <limits.h>
 #include <math.h>
 #include <stdint.h>
 #include <stdlib.h>
@@ -6,12 +7,212 @@
 #include "isomorphism.h"
 
 
+/* the largest number of targets matched by one call, as limited by the Java side */
+#define MAX_BATCH_SIZE      256
+
+
+typedef enum
+{
+    MATCH_DONE = 0,
+    MATCH_LIMIT_EXCEEDED = 1,
+    MATCH_OUT_OF_MEMORY = 2
+}
+MatchStatus;
+
+
+typedef struct
+{
+    const VF2State *template;
+    VF2State *isomorphism;
+    Molecule *molecule;
+    void *matchMemory;
+    bool excluded;
+    bool extend;
+    size_t targetSize;
+    size_t isoSize;
+    size_t molSize;
+    size_t memorySize;
+}
+MatchTarget;
+
+
+typedef struct
+{
+    void *memory;
+    size_t capacity;
+}
+Arena;
+
+
 static jclass byteBufferClass;
 static jclass outOfMemoryErrorClass;
+static jclass illegalArgumentExceptionClass;
 static jclass iterationLimitExceededExceptionClass;
 static jmethodID allocateDirectMethod;
 static jmethodID outOfMemoryErrorConstructor;
 static jmethodID iterationLimitExceededExceptionConstructor;
+static jfieldID arenaField;
+static jfieldID cancelField;
+
+
+static inline void throw_out_of_memory_error(JNIEnv *env)
+{
+    jobject error = (*env)->NewObject(env, outOfMemoryErrorClass, outOfMemoryErrorConstructor);
+
+    if(!(*env)->ExceptionCheck(env))
+        (*env)->Throw(env, error);
+}
+
+
+static inline void arena_get(JNIEnv *env, jobject matcher, Arena *arena)
+{
+    jobject buffer = (*env)->GetObjectField(env, matcher, arenaField);
+
+    arena->memory = buffer != NULL ? (*env)->GetDirectBufferAddress(env, buffer) : NULL;
+    arena->capacity = buffer != NULL ? (size_t) (*env)->GetDirectBufferCapacity(env, buffer) : 0;
+
+    /* the buffer is kept alive by the matcher */
+    if(buffer != NULL)
+        (*env)->DeleteLocalRef(env, buffer);
+}
+
+
+static inline bool arena_reserve(JNIEnv *env, jobject matcher, Arena *arena, size_t size)
+{
+    if(likely(arena->capacity >= size))
+        return true;
+
+    size_t capacity = 2 * arena->capacity;
+
+    if(capacity < size)
+        capacity = size;
+
+    if(capacity > INT_MAX)
+        capacity = size;
+
+    if(unlikely(capacity > INT_MAX))
+    {
+        throw_out_of_memory_error(env);
+        return false;
+    }
+
+    jobject buffer = (*env)->CallStaticObjectMethod(env, byteBufferClass, allocateDirectMethod, (jint) capacity);
+
+    if(unlikely((*env)->ExceptionCheck(env)))
+        return false;
+
+    (*env)->SetObjectField(env, matcher, arenaField, buffer);
+
+    arena->memory = (*env)->GetDirectBufferAddress(env, buffer);
+    arena->capacity = capacity;
+
+    (*env)->DeleteLocalRef(env, buffer);
+    return true;
+}
+
+
+static inline void isomorphism_prepare_target(MatchTarget *result, const VF2State *isomorphism, const uint8_t *target)
+{
+    result->template = isomorphism;
+    result->isomorphism = NULL;
+    result->molecule = NULL;
+    result->memorySize = 0;
+    result->excluded = isomorphism->searchMode == SEARCH_EXACT && isomorphism->query->sgroups == NULL && molecule_has_sgroup(target);
+
+    if(result->excluded)
+        return;
+
+    bool extend = !isomorphism->query->extended && isomorphism->query->hydrogenAtomCount &&
+            (molecule_has_multivalent_hydrogen(target) ||
+                    (isomorphism->searchMode == SEARCH_EXACT && (
+                            (isomorphism->chargeMode == CHARGE_DEFAULT_AS_UNCHARGED && molecule_has_charged_hydrogen(target)) ||
+                            (isomorphism->isotopeMode == ISOTOPE_DEFAULT_AS_STANDARD && molecule_has_hydrogen_isotope(target)) ||
+                            (isomorphism->radicalMode == RADICAL_DEFAULT_AS_STANDARD && molecule_has_hydrogen_radical(target)))));
+
+    result->extend = extend;
+    result->targetSize = molecule_mem_size(target, NULL, extend || isomorphism->query->extended,
+            isomorphism->chargeMode != CHARGE_IGNORE, isomorphism->isotopeMode != ISOTOPE_IGNORE, isomorphism->radicalMode != RADICAL_IGNORE,
+            isomorphism->stereoMode != STEREO_IGNORE, isomorphism->searchMode == SEARCH_EXACT || isomorphism->query->sgroups != NULL,
+            isomorphism->chargeMode == CHARGE_DEFAULT_AS_UNCHARGED, isomorphism->isotopeMode == ISOTOPE_DEFAULT_AS_STANDARD,
+            isomorphism->radicalMode == RADICAL_DEFAULT_AS_STANDARD);
+
+    result->isoSize = extend ? vf2state_extended_mem_size(isomorphism->query) : vf2state_clone_mem_size(isomorphism);
+    result->molSize = extend ? molecule_extended_mem_size(isomorphism->query) : 0;
+    result->memorySize = result->targetSize + result->isoSize + result->molSize +
+            vf2state_match_mem_size(target, isomorphism->query->extended || extend);
+}
+
+
+static inline void isomorphism_load_target(MatchTarget *result, const uint8_t *target, void *memory)
+{
+    if(result->excluded)
+        return;
+
+    const VF2State *template = result->template;
+    VF2State *isomorphism;
+
+    if(result->extend)
+    {
+        Molecule *query = molecule_extend(memory + result->targetSize + result->isoSize, template->query);
+        isomorphism = vf2state_create(memory + result->targetSize, query, template->searchMode, template->chargeMode, template->isotopeMode, template->radicalMode, template->stereoMode);
+    }
+    else
+    {
+        isomorphism = vf2state_clone(memory + result->targetSize, template);
+    }
+
+    result->isomorphism = isomorphism;
+    result->matchMemory = memory + result->targetSize + result->isoSize + result->molSize;
+    result->molecule = molecule_create(memory, target, NULL, isomorphism->query->extended,
+            isomorphism->chargeMode != CHARGE_IGNORE, isomorphism->isotopeMode != ISOTOPE_IGNORE,
+            isomorphism->radicalMode != RADICAL_IGNORE, isomorphism->stereoMode != STEREO_IGNORE,
+            isomorphism->searchMode == SEARCH_EXACT || isomorphism->query->sgroups != NULL,
+            isomorphism->chargeMode == CHARGE_DEFAULT_AS_UNCHARGED, isomorphism->isotopeMode == ISOTOPE_DEFAULT_AS_STANDARD,
+            isomorphism->radicalMode == RADICAL_DEFAULT_AS_STANDARD);
+}
+
+
+static inline volatile CancelState *matcher_get_cancel_state(JNIEnv *env, jobject matcher)
+{
+    jobject cancel = (*env)->GetObjectField(env, matcher, cancelField);
+
+    if(cancel == NULL)
+        return NULL;
+
+    volatile CancelState *state = (volatile CancelState *) (*env)->GetDirectBufferAddress(env, cancel);
+    (*env)->DeleteLocalRef(env, cancel);
+
+    return state;
+}
+
+
+static inline MatchStatus isomorphism_match_target(const MatchTarget *target, int64_t limit, volatile CancelState *cancel,
+        float *score)
+{
+    VF2State *isomorphism = target->isomorphism;
+    Molecule *molecule = target->molecule;
+
+    *score = NAN;
+
+    if(molecule == NULL)
+        return MATCH_DONE;
+
+    if(vf2state_match(isomorphism, molecule, target->matchMemory, limit, cancel))
+    {
+        double heavyAtom = molecule->heavyAtomCount ? isomorphism->query->heavyAtomCount / (double) molecule->heavyAtomCount : 1.0;
+        double hydrogenAtom = molecule->hydrogenAtomCount ? isomorphism->query->hydrogenAtomCount / (double) molecule->hydrogenAtomCount : 1.0;
+        double heavyBond = molecule->heavyBondCount ? isomorphism->query->heavyBondCount / (double) molecule->heavyBondCount : 1.0;
+        double hydrogenBond = molecule->hydrogenBondCount ? isomorphism->query->hydrogenBondCount / (double) molecule->hydrogenBondCount : 1.0;
+
+        *score = (8 * heavyAtom + 4 * heavyBond + 2 * hydrogenAtom + 1 * hydrogenBond) / 15;
+    }
+    else if(unlikely(isomorphism->counter == 0))
+    {
+        return MATCH_LIMIT_EXCEEDED;
+    }
+
+    return MATCH_DONE;
+}
 
 
 JNIEXPORT jobject JNICALL Java_cz_iocb_elchem_molecule_NativeIsomorphism_create(JNIEnv *env, jclass clazz,
@@ -59,93 +260,126 @@ JNIEXPORT jobject JNICALL Java_cz_iocb_elchem_molecule_NativeIsomorphism_create(
 
 
 JNIEXPORT jfloat JNICALL Java_cz_iocb_elchem_molecule_NativeIsomorphism_match(JNIEnv *env, jclass clazz, jobject buffer,
-        jbyteArray targetArray, jlong limit)
+        jobject matcher, jbyteArray targetArray, jint offset, jint length, jlong limit)
 {
-    VF2State *isomorphism = (VF2State *) (*env)->GetDirectBufferAddress(env, buffer);
-    uint8_t *target = (uint8_t *) (*env)->GetByteArrayElements(env, targetArray, NULL);
+    const VF2State *isomorphism = (const VF2State *) (*env)->GetDirectBufferAddress(env, buffer);
+
+    Arena arena;
+    arena_get(env, matcher, &arena);
+
+    uint8_t *target = (uint8_t *) (*env)->GetPrimitiveArrayCritical(env, targetArray, NULL);
 
     if(unlikely(target == NULL))
     {
-        jobject error = (*env)->NewObject(env, outOfMemoryErrorClass, outOfMemoryErrorConstructor);
-
-        if(!(*env)->ExceptionCheck(env))
-            (*env)->Throw(env, error);
+        throw_out_of_memory_error(env);
+        return -INFINITY;
+    }
 
+    if(unlikely(molecule_data_size(target + offset, length) == SIZE_MAX))
+    {
+        (*env)->ReleasePrimitiveArrayCritical(env, targetArray, target, JNI_ABORT);
+        (*env)->ThrowNew(env, illegalArgumentExceptionClass, "malformed target molecule");
         return -INFINITY;
     }
 
-    if(isomorphism->searchMode == SEARCH_EXACT && isomorphism->query->sgroups == NULL && molecule_has_sgroup(target))
-        return NAN;
+    MatchTarget loaded;
+    isomorphism_prepare_target(&loaded, isomorphism, target + offset);
 
-    bool extend = !isomorphism->query->extended && isomorphism->query->hydrogenAtomCount &&
-            (molecule_has_multivalent_hydrogen(target) ||
-                    (isomorphism->searchMode == SEARCH_EXACT && (
-                            (isomorphism->chargeMode == CHARGE_DEFAULT_AS_UNCHARGED && molecule_has_charged_hydrogen(target)) ||
-                            (isomorphism->isotopeMode == ISOTOPE_DEFAULT_AS_STANDARD && molecule_has_hydrogen_isotope(target)) ||
-                            (isomorphism->radicalMode == RADICAL_DEFAULT_AS_STANDARD && molecule_has_hydrogen_radical(target)))));
+    if(unlikely(arena.capacity < loaded.memorySize))
+    {
+        (*env)->ReleasePrimitiveArrayCritical(env, targetArray, target, JNI_ABORT);
 
-    size_t targetsize = molecule_mem_size(target, NULL, extend || isomorphism->query->extended,
-            isomorphism->chargeMode != CHARGE_IGNORE, isomorphism->isotopeMode != ISOTOPE_IGNORE, isomorphism->radicalMode != RADICAL_IGNORE,
-            isomorphism->stereoMode != STEREO_IGNORE, isomorphism->searchMode == SEARCH_EXACT || isomorphism->query->sgroups != NULL,
-            isomorphism->chargeMode == CHARGE_DEFAULT_AS_UNCHARGED, isomorphism->isotopeMode == ISOTOPE_DEFAULT_AS_STANDARD,
-            isomorphism->radicalMode == RADICAL_DEFAULT_AS_STANDARD);
+        if(unlikely(!arena_reserve(env, matcher, &arena, loaded.memorySize)))
+            return -INFINITY;
 
-    size_t isosize = extend ? vf2state_extended_mem_size(isomorphism->query) : 0;
-    size_t molsize = extend ? molecule_extended_mem_size(isomorphism->query) : 0;
-    size_t matchsize = vf2state_match_mem_size(target, isomorphism->query->extended || extend);
+        target = (uint8_t *) (*env)->GetPrimitiveArrayCritical(env, targetArray, NULL);
 
-    void *molmemory = malloc(targetsize + isosize + molsize + matchsize);
+        if(unlikely(target == NULL))
+        {
+            throw_out_of_memory_error(env);
+            return -INFINITY;
+        }
+    }
 
-    if(unlikely(molmemory == NULL))
-    {
-        (*env)->ReleaseByteArrayElements(env, targetArray, (jbyte *) target, JNI_ABORT);
+    isomorphism_load_target(&loaded, target + offset, arena.memory);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, targetArray, target, JNI_ABORT);
+
+    float score;
 
-        jobject error = (*env)->NewObject(env, outOfMemoryErrorClass, outOfMemoryErrorConstructor);
+    if(unlikely(isomorphism_match_target(&loaded, limit, matcher_get_cancel_state(env, matcher), &score) == MATCH_LIMIT_EXCEEDED))
+    {
+        jobject exception = (*env)->NewObject(env, iterationLimitExceededExceptionClass, iterationLimitExceededExceptionConstructor);
 
         if(!(*env)->ExceptionCheck(env))
-            (*env)->Throw(env, error);
+            (*env)->Throw(env, exception);
 
         return -INFINITY;
     }
 
-    if(extend)
+    return score;
+}
+
+
+JNIEXPORT void JNICALL Java_cz_iocb_elchem_molecule_NativeIsomorphism_matchBatch(JNIEnv *env, jclass clazz, jobject buffer,
+        jobject matcher, jobject dataBuffer, jintArray offsetArray, jintArray lengthArray, jint count, jfloatArray scoreArray, jlong limit)
+{
+    if(unlikely(count < 0 || count > MAX_BATCH_SIZE))
     {
-        Molecule *query = molecule_extend(molmemory + targetsize + isosize, isomorphism->query);
-        isomorphism = vf2state_create(molmemory + targetsize, query, isomorphism->searchMode, isomorphism->chargeMode, isomorphism->isotopeMode, isomorphism->radicalMode, isomorphism->stereoMode);
+        (*env)->ThrowNew(env, illegalArgumentExceptionClass, "wrong batch size");
+        return;
     }
 
-    Molecule *molecule = molecule_create(molmemory, target, NULL, isomorphism->query->extended,
-            isomorphism->chargeMode != CHARGE_IGNORE, isomorphism->isotopeMode != ISOTOPE_IGNORE,
-            isomorphism->radicalMode != RADICAL_IGNORE, isomorphism->stereoMode != STEREO_IGNORE,
-            isomorphism->searchMode == SEARCH_EXACT || isomorphism->query->sgroups != NULL,
-            isomorphism->chargeMode == CHARGE_DEFAULT_AS_UNCHARGED, isomorphism->isotopeMode == ISOTOPE_DEFAULT_AS_STANDARD,
-            isomorphism->radicalMode == RADICAL_DEFAULT_AS_STANDARD);
+    const VF2State *isomorphism = (const VF2State *) (*env)->GetDirectBufferAddress(env, buffer);
+    uint8_t *data = (uint8_t *) (*env)->GetDirectBufferAddress(env, dataBuffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, dataBuffer);
 
-    (*env)->ReleaseByteArrayElements(env, targetArray, (jbyte *) target, JNI_ABORT);
+    jint offsets[MAX_BATCH_SIZE];
+    jint lengths[MAX_BATCH_SIZE];
+    jfloat scores[MAX_BATCH_SIZE];
 
-    float score = NAN;
+    (*env)->GetIntArrayRegion(env, offsetArray, 0, count, offsets);
+    (*env)->GetIntArrayRegion(env, lengthArray, 0, count, lengths);
 
-    if(vf2state_match(isomorphism, molecule, molmemory + targetsize + isosize + molsize, limit))
-    {
-        double heavyAtom = molecule->heavyAtomCount ? isomorphism->query->heavyAtomCount / (double) molecule->heavyAtomCount : 1.0;
-        double hydrogenAtom = molecule->hydrogenAtomCount ? isomorphism->query->hydrogenAtomCount / (double) molecule->hydrogenAtomCount : 1.0;
-        double heavyBond = molecule->heavyBondCount ? isomorphism->query->heavyBondCount / (double) molecule->heavyBondCount : 1.0;
-        double hydrogenBond = molecule->hydrogenBondCount ? isomorphism->query->hydrogenBondCount / (double) molecule->hydrogenBondCount : 1.0;
+    if(unlikely((*env)->ExceptionCheck(env)))
+        return;
 
-        score = (8 * heavyAtom + 4 * heavyBond + 2 * hydrogenAtom + 1 * hydrogenBond) / 15;
+    /* the targets are validated up front, so that no parse reads past its own data */
+    for(int i = 0; i < count; i++)
+    {
+        if(unlikely(offsets[i] < 0 || lengths[i] < 0 || (jlong) offsets[i] + lengths[i] > capacity ||
+                molecule_data_size(data + offsets[i], lengths[i]) == SIZE_MAX))
+        {
+            (*env)->ThrowNew(env, illegalArgumentExceptionClass, "malformed target molecule");
+            return;
+        }
     }
-    else if(unlikely(isomorphism->counter == 0))
+
+    Arena arena;
+    arena_get(env, matcher, &arena);
+
+    volatile CancelState *cancel = matcher_get_cancel_state(env, matcher);
+
+    for(int i = 0; i < count; i++)
     {
-        jobject exception = (*env)->NewObject(env, iterationLimitExceededExceptionClass, iterationLimitExceededExceptionConstructor);
+        /* the rest of a cancelled batch is reported as not matched */
+        if(unlikely(cancel != NULL && cancel->flag))
+        {
+            scores[i] = NAN;
+            continue;
+        }
 
-        if(!(*env)->ExceptionCheck(env))
-            (*env)->Throw(env, exception);
+        MatchTarget loaded;
+        isomorphism_prepare_target(&loaded, isomorphism, data + offsets[i]);
 
-        score = -INFINITY;
+        if(unlikely(!arena_reserve(env, matcher, &arena, loaded.memorySize)))
+            return;
+
+        isomorphism_load_target(&loaded, data + offsets[i], arena.memory);
+        isomorphism_match_target(&loaded, limit, cancel, scores + i);
     }
 
-    free(molmemory);
-    return score;
+    (*env)->SetFloatArrayRegion(env, scoreArray, 0, count, scores);
 }
 
 
@@ -154,9 +388,15 @@ JNIEXPORT void JNICALL Java_cz_iocb_elchem_molecule_NativeIsomorphism_init(JNIEn
     outOfMemoryErrorClass = (jclass) (*env)->NewGlobalRef(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"));
     outOfMemoryErrorConstructor = (*env)->GetMethodID(env, outOfMemoryErrorClass, "<init>", "()V");
 
+    illegalArgumentExceptionClass = (jclass) (*env)->NewGlobalRef(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"));
+
     iterationLimitExceededExceptionClass = (jclass) (*env)->NewGlobalRef(env, (*env)->FindClass(env, "cz/iocb/elchem/molecule/NativeIsomorphism$IterationLimitExceededException"));
     iterationLimitExceededExceptionConstructor = (*env)->GetMethodID(env, iterationLimitExceededExceptionClass, "<init>", "()V");
 
     byteBufferClass = (jclass) (*env)->NewGlobalRef(env, (*env)->FindClass(env, "java/nio/ByteBuffer"));
     allocateDirectMethod = (*env)->GetStaticMethodID(env, byteBufferClass, "allocateDirect", "(I)Ljava/nio/ByteBuffer;");
+
+    jclass matcherClass = (*env)->FindClass(env, "cz/iocb/elchem/molecule/NativeIsomorphism$Matcher");
+    arenaField = (*env)->GetFieldID(env, matcherClass, "arena", "Ljava/nio/ByteBuffer;");
+    cancelField = (*env)->GetFieldID(env, matcherClass, "cancel", "Ljava/nio/ByteBuffer;");
 }
@@ -31,6 +31,7 @@
 #define ISOMORPHISM_H__
 
 #include <stdbool.h>
+#include <time.h>
 #include "memory.h"
 #include "compiler.h"
 #include "molecule.h"
@@ -38,6 +39,7 @@
 
 #define UNDEFINED_CORE              -1
 #define is_core_defined(value)      ((value) >= 0)
+#define CANCEL_CHECK_MASK           0xFFF
 
 
 typedef enum
@@ -91,9 +93,20 @@ typedef struct
 VF2Undo;
 
 
+/* shared with java; the deadline is in the time base of System.nanoTime, zero if not set */
+typedef struct
+{
+    int32_t flag;
+    int32_t reserved;
+    int64_t deadline;
+}
+CancelState;
+
+
 typedef struct
 {
     uint64_t counter;
+    volatile CancelState *cancel;
 
     SearchMode searchMode;
     ChargeMode chargeMode;
@@ -302,6 +315,25 @@ static inline VF2State *vf2state_create(void *memory, const Molecule *restrict q
 }
 
 
+static inline size_t vf2state_clone_mem_size(const VF2State *restrict template)
+{
+    return align_size(sizeof(VF2State)) + align_size(template->queryAtomCount * sizeof(AtomIdx)) +
+            align_size(template->queryAtomCount * sizeof(VF2Undo));
+}
+
+
+static inline VF2State *vf2state_clone(void *memory, const VF2State *restrict template)
+{
+    VF2State *restrict vf2state = (VF2State *) alloc_memory(&memory, sizeof(VF2State));
+
+    *vf2state = *template;
+    vf2state->queryCore = (AtomIdx *) alloc_memory(&memory, template->queryAtomCount * sizeof(AtomIdx));
+    vf2state->undos = (VF2Undo *) alloc_memory(&memory, template->queryAtomCount * sizeof(VF2Undo));
+
+    return vf2state;
+}
+
+
 static inline bool vf2state_next_query(VF2State *restrict vf2state)
 {
     if(unlikely(vf2state->coreLength >= vf2state->queryAtomCount))
@@ -1039,6 +1071,30 @@ static inline bool vf2state_is_match_valid(const VF2State *restrict vf2state)
 }
 
 
+static inline bool vf2state_is_cancelled(const VF2State *restrict vf2state)
+{
+    volatile CancelState *cancel = vf2state->cancel;
+
+    if(cancel == NULL)
+        return false;
+
+    if(cancel->flag)
+        return true;
+
+    if(cancel->deadline == 0)
+        return false;
+
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+
+    if((int64_t) now.tv_sec * 1000000000 + now.tv_nsec < cancel->deadline)
+        return false;
+
+    cancel->flag = 1;
+    return true;
+}
+
+
 static inline bool vf2state_match_core(VF2State *restrict vf2state)
 {
     while(true)
@@ -1062,6 +1118,13 @@ static inline bool vf2state_match_core(VF2State *restrict vf2state)
             if(unlikely(--vf2state->counter == 0))
                 return false;
 
+            /* a cancelled match gives up as if its iteration limit was exceeded */
+            if(unlikely((vf2state->counter & CANCEL_CHECK_MASK) == 0 && vf2state_is_cancelled(vf2state)))
+            {
+                vf2state->counter = 0;
+                return false;
+            }
+
             if(vf2state_is_feasible_pair(vf2state))
             {
                 vf2state_add_pair(vf2state);
@@ -1083,9 +1146,11 @@ static inline bool vf2state_match_core(VF2State *restrict vf2state)
 }
 
 
-static inline bool vf2state_match(VF2State *restrict vf2state, const Molecule *restrict target, void *memory, int64_t limit)
+static inline bool vf2state_match(VF2State *restrict vf2state, const Molecule *restrict target, void *memory, int64_t limit,
+        volatile CancelState *cancel)
 {
     vf2state->counter = limit > 0 ? limit : (uint64_t) -1;
+    vf2state->cancel = cancel;
 
     if(vf2state->query->sgroups != NULL && target->sgroups == NULL)
         return false;
@@ -1038,6 +1038,60 @@ static inline bool molecule_has_sgroup(const uint8_t *restrict data)
 }
 
 
+/* returns the size of the molecule data, or SIZE_MAX if the records of the molecule do not fit into the length */
+static inline size_t molecule_data_size(const uint8_t *restrict data, size_t length)
+{
+    if(length < 10)
+        return SIZE_MAX;
+
+    int xAtomCount = data[0] << 8 | data[1];
+    int hAtomCount = data[4] << 8 | data[5];
+    int xBondCount = data[6] << 8 | data[7];
+    int specialCount = data[8] << 8 | data[9];
+
+    size_t size = 10 + xAtomCount + (size_t) xBondCount * BOND_BLOCK_SIZE + (size_t) hAtomCount * HBOND_BLOCK_SIZE +
+            (size_t) specialCount * SPECIAL_BLOCK_SIZE;
+
+    if(size > length)
+        return SIZE_MAX;
+
+    int labelCount = 0;
+    int sgroupCount = 0;
+
+    for(int i = 0; i < xAtomCount; i++)
+        if((int8_t) data[10 + i] == UNKNOWN_ATOM_NUMBER)
+            labelCount++;
+
+    const uint8_t *special = data + size - specialCount * SPECIAL_BLOCK_SIZE;
+
+    for(int i = 0; i < specialCount; i++)
+        if(special[i * SPECIAL_BLOCK_SIZE] >> 4 == RECORD_SGROUP_COUNT)
+            sgroupCount = (special[i * SPECIAL_BLOCK_SIZE + 0] * 256 | special[i * SPECIAL_BLOCK_SIZE + 1]) & 0xFFF;
+
+    for(int i = 0; i < labelCount + sgroupCount; i++)
+    {
+        size_t header = i < labelCount ? 7 : 12;
+
+        if(length - size < header)
+            return SIZE_MAX;
+
+        const uint8_t *record = data + size;
+        size_t recordSize = (size_t) record[0] << 24 | record[1] << 16 | record[2] << 8 | record[3];
+
+        /* the sgroup data are read by their counts */
+        if(i >= labelCount)
+            header += (record[8] * 256 | record[9]) * 2 + (record[10] * 256 | record[11]) * 4;
+
+        if(recordSize < header || recordSize > length - size)
+            return SIZE_MAX;
+
+        size += recordSize;
+    }
+
+    return size;
+}
+
+
 static inline bool molecule_has_multivalent_hydrogen(const uint8_t *restrict data)
 {
     int xAtomCount = data[0] << 8 | data[1];
@@ -0,0 +1,90 @@
+package cz.iocb.elchem.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheLoader;
+import org.elasticsearch.common.unit.TimeValue;
+
+
+
+public class CompiledQueryCache
+{
+    public static final int DEFAULT_SIZE = 1000;
+    public static final TimeValue DEFAULT_EXPIRE = TimeValue.timeValueHours(1);
+
+    private static volatile Cache<List<Object>, Object> cache = build(DEFAULT_SIZE, DEFAULT_EXPIRE);
+
+
+    private static Cache<List<Object>, Object> build(int size, TimeValue expire)
+    {
+        if(size <= 0)
+            return null;
+
+        CacheBuilder<List<Object>, Object> builder = CacheBuilder.<List<Object>, Object> builder();
+        builder.setMaximumWeight(size);
+
+        if(expire.nanos() > 0)
+            builder.setExpireAfterAccess(expire);
+
+        return builder.build();
+    }
+
+
+    public static void configure(int size, TimeValue expire)
+    {
+        cache = build(size, expire);
+    }
+
+
+    public static boolean isEnabled()
+    {
+        return cache != null;
+    }
+
+
+    public static int getCount()
+    {
+        Cache<List<Object>, Object> current = cache;
+        return current != null ? current.count() : 0;
+    }
+
+
+    public static Cache.CacheStats getStats()
+    {
+        Cache<List<Object>, Object> current = cache;
+        return current != null ? current.stats() : new Cache.CacheStats(0, 0, 0);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    static <T> T get(List<Object> key, CacheLoader<List<Object>, T> loader) throws IOException
+    {
+        Cache<List<Object>, Object> current = cache;
+
+        try
+        {
+            if(current == null)
+                return loader.load(key);
+
+            return (T) current.computeIfAbsent(key, (CacheLoader<List<Object>, Object>) loader);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+        catch(IOException e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new IOException(e);
+        }
+    }
+}
@@ -4,20 +4,62 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import cz.iocb.elchem.lucene.SubstructureMatchCache;
 import net.sf.jnati.deploy.NativeLibraryLoader;
 
 
 
-public class ElchemPlugin extends Plugin implements MapperPlugin, SearchPlugin
+public class ElchemPlugin extends Plugin implements MapperPlugin, SearchPlugin, ActionPlugin
 {
+    public static final String COUNT_THREAD_POOL = "elchem_count";
+
+    public static final Setting<ByteSizeValue> MATCH_CACHE_SIZE_SETTING = Setting.byteSizeSetting(
+            "elchem.substructure_match_cache.size", new ByteSizeValue(0), Property.NodeScope);
+
+    public static final Setting<Integer> QUERY_CACHE_SIZE_SETTING = Setting.intSetting("elchem.query_cache.size",
+            CompiledQueryCache.DEFAULT_SIZE, 0, Property.NodeScope);
+
+    public static final Setting<TimeValue> QUERY_CACHE_EXPIRE_SETTING = Setting.timeSetting(
+            "elchem.query_cache.expire", CompiledQueryCache.DEFAULT_EXPIRE, TimeValue.ZERO, Property.NodeScope);
+
+    public static final Setting<TimeValue> VERIFICATION_TIMEOUT_SETTING = Setting.timeSetting(
+            "elchem.verification.timeout", TimeValue.MINUS_ONE, TimeValue.MINUS_ONE, Property.NodeScope);
+
+    public static final Setting<Long> SUBSTRUCTURE_MAX_COST_SETTING = Setting.longSetting(
+            "elchem.substructure.max_cost", 0, 0, Property.NodeScope);
+
+    private final TimeValue verificationTimeout;
+
+
     static
     {
         try
@@ -35,6 +77,40 @@ public class ElchemPlugin extends Plugin implements MapperPlugin, SearchPlugin
     }
 
 
+    public ElchemPlugin(Settings settings)
+    {
+        SubstructureMatchCache.setMaxSize(MATCH_CACHE_SIZE_SETTING.get(settings).getBytes());
+        CompiledQueryCache.configure(QUERY_CACHE_SIZE_SETTING.get(settings), QUERY_CACHE_EXPIRE_SETTING.get(settings));
+        verificationTimeout = VERIFICATION_TIMEOUT_SETTING.get(settings);
+        SubstructureQueryBuilder.setDefaultMaxCost(SUBSTRUCTURE_MAX_COST_SETTING.get(settings));
+    }
+
+
+    @Override
+    public List<Setting<?>> getSettings()
+    {
+        return Arrays.asList(MATCH_CACHE_SIZE_SETTING, QUERY_CACHE_SIZE_SETTING, QUERY_CACHE_EXPIRE_SETTING,
+                VERIFICATION_TIMEOUT_SETTING, SUBSTRUCTURE_MAX_COST_SETTING);
+    }
+
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings)
+    {
+        return Collections.singletonList(new FixedExecutorBuilder(settings, COUNT_THREAD_POOL,
+                EsExecutors.numberOfProcessors(settings), 1000, "elchem.count"));
+    }
+
+
+    @Override
+    public void onIndexModule(IndexModule indexModule)
+    {
+        indexModule.addSearchOperationListener(new VerificationBudgetListener(verificationTimeout));
+        indexModule.addSearchOperationListener(new SampledHitCountListener());
+        indexModule.addSearchOperationListener(new NearestNeighbourHitCountListener());
+    }
+
+
     @Override
     public Map<String, Mapper.TypeParser> getMappers()
     {
@@ -55,4 +131,23 @@ public class ElchemPlugin extends Plugin implements MapperPlugin, SearchPlugin
                 new QuerySpec<SimilarStructureQueryBuilder>(SimilarStructureQueryBuilder.NAME,
                         SimilarStructureQueryBuilder::new, SimilarStructureQueryBuilder::fromXContent));
     }
+
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+            ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+            IndexNameExpressionResolver indexNameExpressionResolver, Supplier<DiscoveryNodes> nodesInCluster)
+    {
+        return Arrays.asList(new ElchemStatsRestHandler(restController),
+                new SubstructureCountRestHandler(restController));
+    }
+
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions()
+    {
+        return Collections.singletonList(new ActionHandler<SubstructureCountAction.Request,
+                SubstructureCountAction.Response>(SubstructureCountAction.INSTANCE,
+                        TransportSubstructureCountAction.class));
+    }
 }
@@ -0,0 +1,69 @@
+package cz.iocb.elchem.elasticsearch;
+
+import java.io.IOException;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import cz.iocb.elchem.lucene.SubstructureMatchCache;
+
+
+
+public class ElchemStatsRestHandler extends BaseRestHandler
+{
+    public static final String PATH = "/_elchem/stats";
+
+
+    public ElchemStatsRestHandler(RestController controller)
+    {
+        controller.registerHandler(RestRequest.Method.GET, PATH, this);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "elchem_stats_action";
+    }
+
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException
+    {
+        // the statistics are local to the node that receives the request
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+
+            builder.startObject("substructure_match_cache");
+            builder.field("enabled", SubstructureMatchCache.isEnabled());
+            builder.field("entries", SubstructureMatchCache.getCount());
+            builder.field("size_in_bytes", SubstructureMatchCache.getWeight());
+            builder.field("hits", SubstructureMatchCache.getHits());
+            builder.field("misses", SubstructureMatchCache.getMisses());
+            builder.field("evictions", SubstructureMatchCache.getEvictions());
+            builder.endObject();
+
+            Cache.CacheStats stats = CompiledQueryCache.getStats();
+            builder.startObject("compiled_query_cache");
+            builder.field("enabled", CompiledQueryCache.isEnabled());
+            builder.field("entries", CompiledQueryCache.getCount());
+            builder.field("hits", stats.getHits());
+            builder.field("misses", stats.getMisses());
+            builder.field("evictions", stats.getEvictions());
+            builder.endObject();
+
+            builder.startObject("verification");
+            builder.field("timed_out", VerificationBudgetListener.getTimedOut());
+            builder.field("cancelled", VerificationBudgetListener.getCancelled());
+            builder.endObject();
+
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,57 @@
+package cz.iocb.elchem.elasticsearch;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.query.QuerySearchResult;
+import cz.iocb.elchem.lucene.SimilarStructureQuery;
+
+
+
+/*
+ * Marks the total hits of the shard searches by nearest neighbour queries as a lower bound. Besides the nearest
+ * neighbours, such a query matches the documents that were among the best when they were reached, so the number of
+ * its matches depends on the order of the search; it is only certain that at least as many documents reach the
+ * threshold.
+ */
+public class NearestNeighbourHitCountListener implements SearchOperationListener
+{
+    @Override
+    public void onQueryPhase(SearchContext context, long tookInNanos)
+    {
+        QuerySearchResult result = context.queryResult();
+
+        if(result.hasConsumedTopDocs() || result.topDocs() == null)
+            return;
+
+        TopDocs topDocs = result.topDocs().topDocs;
+
+        if(topDocs.totalHits == null || topDocs.totalHits.relation != TotalHits.Relation.EQUAL_TO)
+            return;
+
+        if(hasNearestNeighbourQuery(context.query()) || context.parsedPostFilter() != null
+                && hasNearestNeighbourQuery(context.parsedPostFilter().query()))
+            topDocs.totalHits = new TotalHits(topDocs.totalHits.value, TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO);
+    }
+
+
+    private static boolean hasNearestNeighbourQuery(Query query)
+    {
+        boolean[] found = new boolean[1];
+
+        query.visit(new QueryVisitor()
+        {
+            @Override
+            public void visitLeaf(Query leaf)
+            {
+                if(leaf instanceof SimilarStructureQuery && ((SimilarStructureQuery) leaf).getTopK() > 0)
+                    found[0] = true;
+            }
+        });
+
+        return found[0];
+    }
+}
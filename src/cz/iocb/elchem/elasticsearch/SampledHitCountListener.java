@@ -0,0 +1,81 @@
+package cz.iocb.elchem.elasticsearch;
+
+import java.util.List;
+import java.util.Locale;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.query.QuerySearchResult;
+import cz.iocb.elchem.lucene.SampledHitCount;
+
+
+
+/*
+ * Reports the extrapolated hit counts of sampled substructure queries. The estimate replaces the total hits of the
+ * shard, marked as not exact, and the estimate together with its 95% confidence interval is sent in the response
+ * header, one value per shard. When more sampled queries take part in the search, nothing is extrapolated and the
+ * total hits are only marked as a lower bound.
+ */
+public class SampledHitCountListener implements SearchOperationListener
+{
+    public static final String HEADER = "Elchem-Sampled-Hits";
+
+
+    @Override
+    public void onPreQueryPhase(SearchContext context)
+    {
+        // the candidates outside of the sample are verified only to fill the requested page
+        int pageSize = Math.max(context.from(), 0) + Math.max(context.size(), 0);
+
+        SampledHitCount.begin(new SampledHitCount(pageSize));
+    }
+
+
+    @Override
+    public void onQueryPhase(SearchContext context, long tookInNanos)
+    {
+        SampledHitCount count = SampledHitCount.end();
+
+        if(count == null)
+            return;
+
+        List<SampledHitCount.Sample> samples = count.getSamples();
+
+        if(samples.isEmpty())
+            return;
+
+        // the hits of several sampled queries do not add up to the hits of the search, so only the bound is kept
+        SampledHitCount.Sample sample = samples.size() == 1 ? samples.get(0) : null;
+
+        QuerySearchResult result = context.queryResult();
+
+        if(!result.hasConsumedTopDocs() && result.topDocs() != null)
+        {
+            TopDocs topDocs = result.topDocs().topDocs;
+
+            if(topDocs.totalHits != null && topDocs.totalHits.value >= 0)
+            {
+                long estimate = sample != null ? Math.round(sample.getEstimate()) : 0;
+
+                topDocs.totalHits = new TotalHits(Math.max(estimate, topDocs.totalHits.value),
+                        TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO);
+            }
+        }
+
+        if(sample == null)
+            return;
+
+        context.indexShard().getThreadPool().getThreadContext().addResponseHeader(HEADER,
+                String.format(Locale.ROOT, "%s estimate=%.0f lower=%.0f upper=%.0f sampled=%d verified_hits=%d",
+                        context.indexShard().shardId(), sample.getEstimate(), sample.getLowerBound(),
+                        sample.getUpperBound(), sample.getSampledCandidates(), sample.getVerifiedHits()));
+    }
+
+
+    @Override
+    public void onFailedQueryPhase(SearchContext context)
+    {
+        SampledHitCount.end();
+    }
+}
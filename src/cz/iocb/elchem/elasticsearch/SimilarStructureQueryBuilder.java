@@ -1,9 +1,13 @@
 package cz.iocb.elchem.elasticsearch;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeoutException;
 import org.apache.lucene.search.Query;
+import org.elasticsearch.Version;
 import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.io.stream.StreamInput;
@@ -12,9 +16,12 @@ import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
 import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.openscience.cdk.exception.CDKException;
 import cz.iocb.elchem.lucene.SimilarStructureQuery;
+import cz.iocb.elchem.lucene.SimilarityMetric;
 import cz.iocb.elchem.molecule.AromaticityMode;
 import cz.iocb.elchem.molecule.QueryFormat;
 import cz.iocb.elchem.molecule.TautomerMode;
@@ -23,6 +30,12 @@ import cz.iocb.elchem.molecule.TautomerMode;
 
 public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarStructureQueryBuilder>
 {
+    public static enum Metric
+    {
+        TANIMOTO, DICE, TVERSKY
+    }
+
+
     public static final String NAME = "match_similar_structures";
 
     public static final ParseField FIELD_FIELD = new ParseField("field");
@@ -32,15 +45,29 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
     public static final ParseField SIMILARITY_RADIUS_FIELD = new ParseField("similarity_radius", "maximum_depth");
     public static final ParseField AROMATICITY_MODE_FIELD = new ParseField("aromaticity_mode");
     public static final ParseField TAUTOMER_MODE_FIELD = new ParseField("tautomer_mode");
+    public static final ParseField TOP_K_FIELD = new ParseField("top_k");
+    public static final ParseField METRIC_FIELD = new ParseField("metric");
+    public static final ParseField ALPHA_FIELD = new ParseField("alpha");
+    public static final ParseField BETA_FIELD = new ParseField("beta");
+
+    private static final Version EXTENDED_WIRE_VERSION = Version.V_7_5_2;
+
+    private static final float defaultThreshold = 0.8f;
+    private static final float minimalThreshold = 0.5f;
 
 
     private String fieldName;
     private String molecule;
     private QueryFormat queryFormat;
-    private float threshold = 0.8f;
+    private float threshold = defaultThreshold;
     private int similarityRadius = 1;
     private AromaticityMode aromaticityMode = AromaticityMode.AUTO;
     private TautomerMode tautomerMode = TautomerMode.IGNORE;
+    private int topK = 0;
+    private Metric metric = Metric.TANIMOTO;
+    private float alpha = 1.0f;
+    private float beta = 1.0f;
+    private SimilarStructureQuery.CompiledQuery compiled = null;
 
 
     public SimilarStructureQueryBuilder()
@@ -48,6 +75,24 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
     }
 
 
+    private SimilarStructureQueryBuilder(SimilarStructureQueryBuilder other,
+            SimilarStructureQuery.CompiledQuery compiled)
+    {
+        fieldName = other.fieldName;
+        molecule = other.molecule;
+        queryFormat = other.queryFormat;
+        threshold = other.threshold;
+        similarityRadius = other.similarityRadius;
+        aromaticityMode = other.aromaticityMode;
+        tautomerMode = other.tautomerMode;
+        topK = other.topK;
+        metric = other.metric;
+        alpha = other.alpha;
+        beta = other.beta;
+        this.compiled = compiled;
+    }
+
+
     public SimilarStructureQueryBuilder(StreamInput in) throws IOException
     {
         super(in);
@@ -59,6 +104,18 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
         similarityRadius = in.readInt();
         aromaticityMode = in.readEnum(AromaticityMode.class);
         tautomerMode = in.readEnum(TautomerMode.class);
+
+        if(in.getVersion().onOrAfter(EXTENDED_WIRE_VERSION))
+        {
+            topK = in.readVInt();
+            metric = in.readEnum(Metric.class);
+            alpha = in.readFloat();
+            beta = in.readFloat();
+
+            // the received compilation serves this request only
+            if(in.readBoolean())
+                compiled = readCompiledQuery(in);
+        }
     }
 
 
@@ -72,6 +129,74 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
         out.writeInt(similarityRadius);
         out.writeEnum(aromaticityMode);
         out.writeEnum(tautomerMode);
+
+        if(out.getVersion().onOrAfter(EXTENDED_WIRE_VERSION))
+        {
+            out.writeVInt(topK);
+            out.writeEnum(metric);
+            out.writeFloat(alpha);
+            out.writeFloat(beta);
+            out.writeBoolean(compiled != null);
+
+            if(compiled != null)
+                writeCompiledQuery(out, compiled);
+        }
+        else if(topK != 0 || metric != Metric.TANIMOTO)
+        {
+            throw new IllegalArgumentException("[" + NAME + "] options [" + TOP_K_FIELD.getPreferredName() + "] and ["
+                    + METRIC_FIELD.getPreferredName() + "] are not supported by nodes before "
+                    + EXTENDED_WIRE_VERSION);
+        }
+    }
+
+
+    private static SimilarStructureQuery.CompiledQuery readCompiledQuery(StreamInput in) throws IOException
+    {
+        String name = in.readOptionalString();
+        int tautomerCount = in.readVInt();
+        List<List<List<Integer>>> fingerprints = new ArrayList<List<List<Integer>>>(tautomerCount);
+
+        for(int t = 0; t < tautomerCount; t++)
+        {
+            int iterationCount = in.readVInt();
+            List<List<Integer>> fingerprint = new ArrayList<List<Integer>>(iterationCount);
+
+            for(int i = 0; i < iterationCount; i++)
+            {
+                int size = in.readVInt();
+                List<Integer> iteration = new ArrayList<Integer>(size);
+
+                for(int j = 0; j < size; j++)
+                    iteration.add(in.readInt());
+
+                fingerprint.add(iteration);
+            }
+
+            fingerprints.add(fingerprint);
+        }
+
+        return new SimilarStructureQuery.CompiledQuery(name, fingerprints);
+    }
+
+
+    private static void writeCompiledQuery(StreamOutput out, SimilarStructureQuery.CompiledQuery compiled)
+            throws IOException
+    {
+        out.writeOptionalString(compiled.getName());
+        out.writeVInt(compiled.getFingerprints().size());
+
+        for(List<List<Integer>> fingerprint : compiled.getFingerprints())
+        {
+            out.writeVInt(fingerprint.size());
+
+            for(List<Integer> iteration : fingerprint)
+            {
+                out.writeVInt(iteration.size());
+
+                for(int value : iteration)
+                    out.writeInt(value);
+            }
+        }
     }
 
 
@@ -80,10 +205,14 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
         String fieldPattern = null;
         String moleculePattern = null;
         QueryFormat queryFormatPattern = QueryFormat.UNSPECIFIED;
-        float thresholdPattern = 0.8f;
+        Float thresholdPattern = null;
         int similarityRadiusPattern = 1;
         AromaticityMode aromaticityModePattern = AromaticityMode.AUTO;
         TautomerMode tautomerModePattern = TautomerMode.IGNORE;
+        int topKPattern = 0;
+        Metric metricPattern = Metric.TANIMOTO;
+        float alphaPattern = 1.0f;
+        float betaPattern = 1.0f;
 
         String queryName = null;
         float boost = AbstractQueryBuilder.DEFAULT_BOOST;
@@ -119,7 +248,7 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
                 {
                     thresholdPattern = parser.floatValue();
 
-                    if(thresholdPattern < 0.5f || thresholdPattern > 1.0f)
+                    if(thresholdPattern < minimalThreshold || thresholdPattern > 1.0f)
                         throw new ParsingException(parser.getTokenLocation(), "wrong threshold value [{}]",
                                 thresholdPattern);
                 }
@@ -148,6 +277,35 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
                     if(tautomerModePattern == null)
                         throw new ParsingException(parser.getTokenLocation(), "unknown tautomer mode [{}]", value);
                 }
+                else if(TOP_K_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
+                {
+                    topKPattern = parser.intValue();
+
+                    if(topKPattern < 0)
+                        throw new ParsingException(parser.getTokenLocation(), "wrong top k value [{}]", topKPattern);
+                }
+                else if(METRIC_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
+                {
+                    String value = parser.text();
+                    metricPattern = Metric.valueOf(value.toUpperCase());
+
+                    if(metricPattern == null)
+                        throw new ParsingException(parser.getTokenLocation(), "unknown metric [{}]", value);
+                }
+                else if(ALPHA_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
+                {
+                    alphaPattern = parser.floatValue();
+
+                    if(alphaPattern < 0)
+                        throw new ParsingException(parser.getTokenLocation(), "wrong alpha value [{}]", alphaPattern);
+                }
+                else if(BETA_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
+                {
+                    betaPattern = parser.floatValue();
+
+                    if(betaPattern < 0)
+                        throw new ParsingException(parser.getTokenLocation(), "wrong beta value [{}]", betaPattern);
+                }
                 else if(AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
                 {
                     queryName = parser.text();
@@ -181,21 +339,38 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
                     "[" + ExistsQueryBuilder.NAME + "] must be provided with a [molecule]");
         }
 
+        if(metricPattern == Metric.TVERSKY && alphaPattern + betaPattern == 0)
+        {
+            throw new ParsingException(parser.getTokenLocation(),
+                    "[" + NAME + "] must be provided with a nonzero [alpha] or [beta]");
+        }
+
 
         SimilarStructureQueryBuilder builder = new SimilarStructureQueryBuilder();
         builder.fieldName = fieldPattern;
         builder.molecule = moleculePattern;
         builder.queryFormat = queryFormatPattern;
-        builder.threshold = thresholdPattern;
+        builder.threshold = thresholdPattern != null ? thresholdPattern : getDefaultThreshold(topKPattern);
         builder.similarityRadius = similarityRadiusPattern;
         builder.aromaticityMode = aromaticityModePattern;
         builder.tautomerMode = tautomerModePattern;
+        builder.topK = topKPattern;
+        builder.metric = metricPattern;
+        builder.alpha = alphaPattern;
+        builder.beta = betaPattern;
         builder.queryName(queryName);
         builder.boost(boost);
         return builder;
     }
 
 
+    // the nearest neighbours are not limited by the default threshold
+    private static float getDefaultThreshold(int topK)
+    {
+        return topK > 0 ? minimalThreshold : defaultThreshold;
+    }
+
+
     @Override
     protected void doXContent(XContentBuilder builder, Params params) throws IOException
     {
@@ -207,26 +382,77 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
         builder.field(SIMILARITY_RADIUS_FIELD.getPreferredName(), similarityRadius);
         builder.field(AROMATICITY_MODE_FIELD.getPreferredName(), aromaticityMode.name().toLowerCase());
         builder.field(TAUTOMER_MODE_FIELD.getPreferredName(), tautomerMode.name().toLowerCase());
+        builder.field(TOP_K_FIELD.getPreferredName(), topK);
+        builder.field(METRIC_FIELD.getPreferredName(), metric.name().toLowerCase());
+
+        if(metric == Metric.TVERSKY)
+        {
+            builder.field(ALPHA_FIELD.getPreferredName(), alpha);
+            builder.field(BETA_FIELD.getPreferredName(), beta);
+        }
+
         printBoostAndQueryName(builder);
         builder.endObject();
     }
 
 
     @Override
-    protected Query doToQuery(QueryShardContext arg0) throws IOException
+    protected QueryBuilder doRewrite(QueryRewriteContext context) throws IOException
     {
-        try
-        {
-            return new SimilarStructureQuery(fieldName, molecule, queryFormat, threshold, similarityRadius,
-                    aromaticityMode, tautomerMode);
-        }
-        catch(CDKException | TimeoutException e)
+        // the query is compiled once, on the coordinating node, and the shards only deserialize it
+        if(compiled != null)
+            return this;
+
+        return new SimilarStructureQueryBuilder(this, compile());
+    }
+
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException
+    {
+        return new SimilarStructureQuery(fieldName, molecule, queryFormat, threshold, similarityRadius,
+                aromaticityMode, tautomerMode, getMetric(), topK, compiled != null ? compiled : compile());
+    }
+
+
+    private SimilarityMetric getMetric()
+    {
+        switch(metric)
         {
-            throw new IOException(e);
+            case DICE:
+                return SimilarityMetric.DICE;
+
+            case TVERSKY:
+                return SimilarityMetric.tversky(alpha, beta);
+
+            default:
+                return SimilarityMetric.TANIMOTO;
         }
     }
 
 
+    private SimilarStructureQuery.CompiledQuery compile() throws IOException
+    {
+        return CompiledQueryCache.get(compilationKey(), key -> {
+            try
+            {
+                return SimilarStructureQuery.compile(molecule, queryFormat, similarityRadius, aromaticityMode,
+                        tautomerMode);
+            }
+            catch(CDKException | TimeoutException e)
+            {
+                throw new IOException(e);
+            }
+        });
+    }
+
+
+    private List<Object> compilationKey()
+    {
+        return Arrays.asList(NAME, molecule, queryFormat, similarityRadius, aromaticityMode, tautomerMode);
+    }
+
+
     @Override
     public String getWriteableName()
     {
@@ -241,7 +467,8 @@ public class SimilarStructureQueryBuilder extends AbstractQueryBuilder<SimilarSt
                 && Objects.equals(queryFormat, other.queryFormat)
                 && Objects.equals(aromaticityMode, other.aromaticityMode)
                 && Objects.equals(tautomerMode, other.tautomerMode) && threshold == other.threshold
-                && similarityRadius == other.similarityRadius;
+                && similarityRadius == other.similarityRadius && topK == other.topK && metric == other.metric
+                && alpha == other.alpha && beta == other.beta;
     }
 
 
@@ -28,6 +28,7 @@ import org.openscience.cdk.interfaces.IAtomContainer;
 import cz.iocb.elchem.fingerprint.IOCBFingerprint;
 import cz.iocb.elchem.lucene.FingerprintTokenStream;
 import cz.iocb.elchem.lucene.SimilarStructureQuery;
+import cz.iocb.elchem.lucene.SimilarityFingerprint;
 import cz.iocb.elchem.molecule.AromaticityMode;
 import cz.iocb.elchem.molecule.BinaryMolecule;
 import cz.iocb.elchem.molecule.BinaryMoleculeBuilder;
@@ -208,17 +209,7 @@ public class SimilarityFingerprintFieldMapper extends FieldMapper
             List<List<Integer>> fp = IOCBFingerprint.getSimilarityFingerprint(molecule, maximumSimilarityRadius);
 
 
-            byte[] array = new byte[fp.stream().map(i -> i.size() + 1).reduce(0, Integer::sum) * Integer.BYTES];
-
-            for(int pos = 0, i = 0; i < fp.size(); i++)
-            {
-                for(int b = 0; b < Integer.BYTES; b++)
-                    array[pos++] = (byte) (fp.get(i).size() >> (8 * b));
-
-                for(int bit : fp.get(i))
-                    for(int b = 0; b < Integer.BYTES; b++)
-                        array[pos++] = (byte) (bit >> (8 * b));
-            }
+            byte[] array = SimilarityFingerprint.encode(fp);
 
 
             Set<Integer> bits = new HashSet<Integer>();
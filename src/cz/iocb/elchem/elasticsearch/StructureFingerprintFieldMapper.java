@@ -14,6 +14,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.mapper.Mapper;
@@ -24,7 +25,12 @@ import org.elasticsearch.index.query.QueryShardContext;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import cz.iocb.elchem.fingerprint.IOCBFingerprint;
+import cz.iocb.elchem.lucene.CostBasedScreeningPlanner;
 import cz.iocb.elchem.lucene.FingerprintTokenStream;
+import cz.iocb.elchem.lucene.ScreeningPlanner;
+import cz.iocb.elchem.lucene.StructureCounts;
+import cz.iocb.elchem.lucene.StructureHash;
+import cz.iocb.elchem.lucene.StructureSizes;
 import cz.iocb.elchem.molecule.AromaticityMode;
 import cz.iocb.elchem.molecule.BinaryMolecule;
 import cz.iocb.elchem.molecule.BinaryMoleculeBuilder;
@@ -52,6 +58,9 @@ public class StructureFingerprintFieldMapper extends FieldMapper
     public static class Builder extends FieldMapper.Builder<Builder, StructureFingerprintFieldMapper>
     {
         private AromaticityMode aromaticityMode = AromaticityMode.AUTO;
+        private int screeningMaxBits = CostBasedScreeningPlanner.DEFAULT_MAX_BITS;
+        private int screeningAtomCoverage = CostBasedScreeningPlanner.DEFAULT_ATOM_COVERAGE;
+        private int screeningVerificationCost = CostBasedScreeningPlanner.DEFAULT_VERIFICATION_COST;
 
 
         public Builder(String name)
@@ -79,11 +88,14 @@ public class StructureFingerprintFieldMapper extends FieldMapper
             fieldType.setHasDocValues(false);
             fieldType.setStored(false);
             ((FieldType) fieldType).aromaticityMode = aromaticityMode;
+            ((FieldType) fieldType).planner = new CostBasedScreeningPlanner(screeningMaxBits, screeningAtomCoverage,
+                    screeningVerificationCost);
 
             defaultFieldType.setIndexOptions(IndexOptions.NONE);
             defaultFieldType.setHasDocValues(false);
             defaultFieldType.setStored(false);
             ((FieldType) defaultFieldType).aromaticityMode = AromaticityMode.AUTO;
+            ((FieldType) defaultFieldType).planner = CostBasedScreeningPlanner.DEFAULT;
         }
     }
 
@@ -107,16 +119,43 @@ public class StructureFingerprintFieldMapper extends FieldMapper
                     builder.aromaticityMode = AromaticityMode.valueOf(entry.getValue().toString().toUpperCase());
                     iterator.remove();
                 }
+                else if(entry.getKey().equals("screening_max_bits"))
+                {
+                    builder.screeningMaxBits = parseScreeningParameter(entry);
+                    iterator.remove();
+                }
+                else if(entry.getKey().equals("screening_atom_coverage"))
+                {
+                    builder.screeningAtomCoverage = parseScreeningParameter(entry);
+                    iterator.remove();
+                }
+                else if(entry.getKey().equals("screening_verification_cost"))
+                {
+                    builder.screeningVerificationCost = parseScreeningParameter(entry);
+                    iterator.remove();
+                }
             }
 
             return builder;
         }
+
+
+        private static int parseScreeningParameter(Map.Entry<String, Object> entry)
+        {
+            int value = XContentMapValues.nodeIntegerValue(entry.getValue());
+
+            if(value < 1)
+                throw new MapperParsingException("[" + entry.getKey() + "] must be positive");
+
+            return value;
+        }
     }
 
 
     public static class FieldType extends MappedFieldType
     {
         private AromaticityMode aromaticityMode = AromaticityMode.AUTO;
+        private CostBasedScreeningPlanner planner = CostBasedScreeningPlanner.DEFAULT;
 
 
         public FieldType()
@@ -129,6 +168,13 @@ public class StructureFingerprintFieldMapper extends FieldMapper
             super(ref);
 
             aromaticityMode = ref.aromaticityMode;
+            planner = ref.planner;
+        }
+
+
+        public ScreeningPlanner screeningPlanner()
+        {
+            return planner;
         }
 
 
@@ -182,6 +228,18 @@ public class StructureFingerprintFieldMapper extends FieldMapper
 
         if(includeDefaults || ((FieldType) fieldType).aromaticityMode != ((FieldType) defaultFieldType).aromaticityMode)
             builder.field("aromaticity_mode", ((FieldType) fieldType).aromaticityMode.name());
+
+        CostBasedScreeningPlanner planner = ((FieldType) fieldType).planner;
+        CostBasedScreeningPlanner defaultPlanner = ((FieldType) defaultFieldType).planner;
+
+        if(includeDefaults || planner.getMaxBits() != defaultPlanner.getMaxBits())
+            builder.field("screening_max_bits", planner.getMaxBits());
+
+        if(includeDefaults || planner.getAtomCoverage() != defaultPlanner.getAtomCoverage())
+            builder.field("screening_atom_coverage", planner.getAtomCoverage());
+
+        if(includeDefaults || planner.getVerificationCost() != defaultPlanner.getVerificationCost())
+            builder.field("screening_verification_cost", planner.getVerificationCost());
     }
 
 
@@ -217,6 +275,9 @@ public class StructureFingerprintFieldMapper extends FieldMapper
             fields.add(new StoredField(name, binary));
             fields.add(new BinaryDocValuesField(name, new BytesRef(binary)));
             fields.add(new TextField(name, new FingerprintTokenStream(fp)));
+            fields.add(StructureCounts.createField(name, molecule));
+            fields.add(StructureHash.createField(name, molecule));
+            fields.add(StructureSizes.createField(name, molecule));
         }
         catch(CDKException e)
         {
@@ -0,0 +1,224 @@
+package cz.iocb.elchem.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.ValidateActions;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.shard.ShardId;
+
+
+
+/*
+ * Counts the documents matching a substructure query without collecting them. Every shard counts at most the cap,
+ * and the total is capped again, so a capped count only tells that there are at least that many matches.
+ */
+public class SubstructureCountAction extends ActionType<SubstructureCountAction.Response>
+{
+    public static final String NAME = "indices:data/read/elchem/substructure_count";
+    public static final SubstructureCountAction INSTANCE = new SubstructureCountAction();
+
+
+    private SubstructureCountAction()
+    {
+        super(NAME, Response::new);
+    }
+
+
+    public static class Request extends BroadcastRequest<Request>
+    {
+        private SubstructureQueryBuilder query;
+        private long cap;
+
+
+        public Request(SubstructureQueryBuilder query, long cap, String... indices)
+        {
+            super(indices);
+            this.query = query;
+            this.cap = cap;
+        }
+
+
+        public Request(StreamInput in) throws IOException
+        {
+            super(in);
+            query = new SubstructureQueryBuilder(in);
+            cap = in.readVLong();
+        }
+
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException
+        {
+            super.writeTo(out);
+            query.writeTo(out);
+            out.writeVLong(cap);
+        }
+
+
+        @Override
+        public ActionRequestValidationException validate()
+        {
+            ActionRequestValidationException exception = super.validate();
+
+            if(query == null)
+                exception = ValidateActions.addValidationError("query is missing", exception);
+
+            if(cap < 0)
+                exception = ValidateActions.addValidationError("wrong cap value [" + cap + "]", exception);
+
+            return exception;
+        }
+
+
+        public SubstructureQueryBuilder query()
+        {
+            return query;
+        }
+
+
+        public long cap()
+        {
+            return cap;
+        }
+    }
+
+
+    public static class Response extends BroadcastResponse
+    {
+        private long count;
+        private boolean capped;
+
+
+        public Response(long count, boolean capped, int totalShards, int successfulShards, int failedShards,
+                List<DefaultShardOperationFailedException> shardFailures)
+        {
+            super(totalShards, successfulShards, failedShards, shardFailures);
+            this.count = count;
+            this.capped = capped;
+        }
+
+
+        public Response(StreamInput in) throws IOException
+        {
+            super(in);
+            count = in.readVLong();
+            capped = in.readBoolean();
+        }
+
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException
+        {
+            super.writeTo(out);
+            out.writeVLong(count);
+            out.writeBoolean(capped);
+        }
+
+
+        @Override
+        protected void addCustomXContentFields(XContentBuilder builder, Params params) throws IOException
+        {
+            builder.field("count", count);
+            builder.field("capped", capped);
+        }
+
+
+        public long getCount()
+        {
+            return count;
+        }
+
+
+        public boolean isCapped()
+        {
+            return capped;
+        }
+    }
+
+
+    static class ShardRequest extends BroadcastShardRequest
+    {
+        private SubstructureQueryBuilder query;
+        private long cap;
+
+
+        ShardRequest(ShardId shardId, Request request)
+        {
+            super(shardId, request);
+            this.query = request.query();
+            this.cap = request.cap();
+        }
+
+
+        ShardRequest(StreamInput in) throws IOException
+        {
+            super(in);
+            query = new SubstructureQueryBuilder(in);
+            cap = in.readVLong();
+        }
+
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException
+        {
+            super.writeTo(out);
+            query.writeTo(out);
+            out.writeVLong(cap);
+        }
+
+
+        SubstructureQueryBuilder query()
+        {
+            return query;
+        }
+
+
+        long cap()
+        {
+            return cap;
+        }
+    }
+
+
+    static class ShardResponse extends BroadcastShardResponse
+    {
+        private long count;
+
+
+        ShardResponse(ShardId shardId, long count)
+        {
+            super(shardId);
+            this.count = count;
+        }
+
+
+        ShardResponse(StreamInput in) throws IOException
+        {
+            super(in);
+            count = in.readVLong();
+        }
+
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException
+        {
+            super.writeTo(out);
+            out.writeVLong(count);
+        }
+
+
+        long getCount()
+        {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package cz.iocb.elchem.elasticsearch;
+
+import java.io.IOException;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+
+
+public class SubstructureCountRestHandler extends BaseRestHandler
+{
+    public static final String PATH = "/_elchem/substructure_count";
+
+
+    public SubstructureCountRestHandler(RestController controller)
+    {
+        controller.registerHandler(RestRequest.Method.GET, PATH, this);
+        controller.registerHandler(RestRequest.Method.POST, PATH, this);
+        controller.registerHandler(RestRequest.Method.GET, "/{index}" + PATH, this);
+        controller.registerHandler(RestRequest.Method.POST, "/{index}" + PATH, this);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "elchem_substructure_count_action";
+    }
+
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException
+    {
+        QueryBuilder query;
+
+        try(XContentParser parser = request.contentOrSourceParamParser())
+        {
+            query = RestActions.getQueryContent(parser);
+        }
+
+        if(!(query instanceof SubstructureQueryBuilder))
+            throw new IllegalArgumentException("only a [" + SubstructureQueryBuilder.NAME + "] query can be counted");
+
+        SubstructureCountAction.Request countRequest = new SubstructureCountAction.Request(
+                (SubstructureQueryBuilder) query, request.paramAsLong("cap", 0),
+                Strings.splitStringByCommaToArray(request.param("index")));
+
+        return channel -> client.execute(SubstructureCountAction.INSTANCE, countRequest,
+                new RestToXContentListener<SubstructureCountAction.Response>(channel));
+    }
+}
@@ -1,19 +1,32 @@
 package cz.iocb.elchem.elasticsearch;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
 import org.apache.lucene.search.Query;
+import org.elasticsearch.Version;
 import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
 import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.openscience.cdk.exception.CDKException;
+import cz.iocb.elchem.lucene.CostBasedScreeningPlanner;
+import cz.iocb.elchem.lucene.ScreeningPlanner;
 import cz.iocb.elchem.lucene.SubstructureQuery;
 import cz.iocb.elchem.molecule.AromaticityMode;
 import cz.iocb.elchem.molecule.ChargeMode;
@@ -41,6 +54,14 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
     public static final ParseField AROMATICITY_MODE_FIELD = new ParseField("aromaticity_mode");
     public static final ParseField TAUTOMER_MODE_FIELD = new ParseField("tautomer_mode");
     public static final ParseField MATCHING_LIMIT_FIELD = new ParseField("matching_limit");
+    public static final ParseField TOP_K_FIELD = new ParseField("top_k");
+    public static final ParseField MAX_COST_FIELD = new ParseField("max_cost");
+    public static final ParseField SAMPLE_SIZE_FIELD = new ParseField("sample_size");
+
+    // the first version whose nodes exchange the extended options and the compiled query
+    private static final Version EXTENDED_WIRE_VERSION = Version.V_7_5_2;
+
+    private static volatile long defaultMaxCost = 0;
 
 
     private String fieldName;
@@ -54,6 +75,10 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
     private AromaticityMode aromaticityMode = AromaticityMode.AUTO;
     private TautomerMode tautomerMode = TautomerMode.IGNORE;
     private long matchingLimit = 0;
+    private int topK = 0;
+    private long maxCost = 0;
+    private int sampleSize = 0;
+    private SubstructureQuery.CompiledQuery compiled = null;
 
 
     public SubstructureQueryBuilder()
@@ -61,6 +86,26 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
     }
 
 
+    private SubstructureQueryBuilder(SubstructureQueryBuilder other, SubstructureQuery.CompiledQuery compiled)
+    {
+        fieldName = other.fieldName;
+        molecule = other.molecule;
+        queryFormat = other.queryFormat;
+        searchMode = other.searchMode;
+        chargeMode = other.chargeMode;
+        isotopeMode = other.isotopeMode;
+        radicalMode = other.radicalMode;
+        stereoMode = other.stereoMode;
+        aromaticityMode = other.aromaticityMode;
+        tautomerMode = other.tautomerMode;
+        matchingLimit = other.matchingLimit;
+        topK = other.topK;
+        maxCost = other.maxCost;
+        sampleSize = other.sampleSize;
+        this.compiled = compiled;
+    }
+
+
     public SubstructureQueryBuilder(StreamInput in) throws IOException
     {
         super(in);
@@ -76,6 +121,17 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
         aromaticityMode = in.readEnum(AromaticityMode.class);
         tautomerMode = in.readEnum(TautomerMode.class);
         matchingLimit = in.readLong();
+
+        if(in.getVersion().onOrAfter(EXTENDED_WIRE_VERSION))
+        {
+            topK = in.readVInt();
+            maxCost = in.readVLong();
+            sampleSize = in.readVInt();
+
+            // the received compilation serves this request only, the cache holds the local compilations
+            if(in.readBoolean())
+                compiled = readCompiledQuery(in);
+        }
     }
 
 
@@ -93,6 +149,98 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
         out.writeEnum(aromaticityMode);
         out.writeEnum(tautomerMode);
         out.writeLong(matchingLimit);
+
+        if(out.getVersion().onOrAfter(EXTENDED_WIRE_VERSION))
+        {
+            out.writeVInt(topK);
+            out.writeVLong(maxCost);
+            out.writeVInt(sampleSize);
+            out.writeBoolean(compiled != null);
+
+            if(compiled != null)
+                writeCompiledQuery(out, compiled);
+        }
+        else if(topK != 0 || maxCost != 0 || sampleSize != 0)
+        {
+            throw new IllegalArgumentException("[" + NAME + "] options [" + TOP_K_FIELD.getPreferredName() + "], ["
+                    + MAX_COST_FIELD.getPreferredName() + "] and [" + SAMPLE_SIZE_FIELD.getPreferredName()
+                    + "] are not supported by nodes before " + EXTENDED_WIRE_VERSION);
+        }
+    }
+
+
+    private static SubstructureQuery.CompiledQuery readCompiledQuery(StreamInput in) throws IOException
+    {
+        String name = in.readOptionalString();
+        int tautomerCount = in.readVInt();
+        List<SubstructureQuery.CompiledTautomer> tautomers = new ArrayList<SubstructureQuery.CompiledTautomer>(
+                tautomerCount);
+
+        for(int t = 0; t < tautomerCount; t++)
+        {
+            byte[] data = in.readByteArray();
+            boolean[] restH = null;
+
+            if(in.readBoolean())
+            {
+                restH = new boolean[in.readVInt()];
+
+                for(int i = 0; i < restH.length; i++)
+                    restH[i] = in.readBoolean();
+            }
+
+            int bitCount = in.readVInt();
+            Map<Integer, Set<Integer>> fingerprint = new HashMap<Integer, Set<Integer>>();
+
+            for(int b = 0; b < bitCount; b++)
+            {
+                int bit = in.readInt();
+                int atomCount = in.readVInt();
+                Set<Integer> atoms = new HashSet<Integer>();
+
+                for(int a = 0; a < atomCount; a++)
+                    atoms.add(in.readVInt());
+
+                fingerprint.put(bit, atoms);
+            }
+
+            tautomers.add(new SubstructureQuery.CompiledTautomer(data, restH, fingerprint));
+        }
+
+        return new SubstructureQuery.CompiledQuery(name, tautomers);
+    }
+
+
+    private static void writeCompiledQuery(StreamOutput out, SubstructureQuery.CompiledQuery compiled)
+            throws IOException
+    {
+        out.writeOptionalString(compiled.getName());
+        out.writeVInt(compiled.getTautomers().size());
+
+        for(SubstructureQuery.CompiledTautomer tautomer : compiled.getTautomers())
+        {
+            out.writeByteArray(tautomer.getMolecule());
+            out.writeBoolean(tautomer.getRestH() != null);
+
+            if(tautomer.getRestH() != null)
+            {
+                out.writeVInt(tautomer.getRestH().length);
+
+                for(boolean value : tautomer.getRestH())
+                    out.writeBoolean(value);
+            }
+
+            out.writeVInt(tautomer.getFingerprint().size());
+
+            for(Map.Entry<Integer, Set<Integer>> entry : tautomer.getFingerprint().entrySet())
+            {
+                out.writeInt(entry.getKey());
+                out.writeVInt(entry.getValue().size());
+
+                for(int atom : entry.getValue())
+                    out.writeVInt(atom);
+            }
+        }
     }
 
 
@@ -109,6 +257,9 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
         AromaticityMode aromaticityModePattern = AromaticityMode.AUTO;
         TautomerMode tautomerModePattern = TautomerMode.IGNORE;
         long matchingLimitPattern = 0;
+        int topKPattern = 0;
+        long maxCostPattern = 0;
+        int sampleSizePattern = 0;
 
         String queryName = null;
         float boost = AbstractQueryBuilder.DEFAULT_BOOST;
@@ -204,6 +355,29 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
                         throw new ParsingException(parser.getTokenLocation(), "wrong matching limit value [{}]",
                                 matchingLimitPattern);
                 }
+                else if(TOP_K_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
+                {
+                    topKPattern = parser.intValue();
+
+                    if(topKPattern < 0)
+                        throw new ParsingException(parser.getTokenLocation(), "wrong top k value [{}]", topKPattern);
+                }
+                else if(MAX_COST_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
+                {
+                    maxCostPattern = parser.longValue();
+
+                    if(maxCostPattern < 0)
+                        throw new ParsingException(parser.getTokenLocation(), "wrong max cost value [{}]",
+                                maxCostPattern);
+                }
+                else if(SAMPLE_SIZE_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
+                {
+                    sampleSizePattern = parser.intValue();
+
+                    if(sampleSizePattern < 0)
+                        throw new ParsingException(parser.getTokenLocation(), "wrong sample size value [{}]",
+                                sampleSizePattern);
+                }
                 else if(AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler()))
                 {
                     queryName = parser.text();
@@ -250,6 +424,9 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
         builder.aromaticityMode = aromaticityModePattern;
         builder.tautomerMode = tautomerModePattern;
         builder.matchingLimit = matchingLimitPattern;
+        builder.topK = topKPattern;
+        builder.maxCost = maxCostPattern;
+        builder.sampleSize = sampleSizePattern;
         builder.queryName(queryName);
         builder.boost(boost);
         return builder;
@@ -271,23 +448,72 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
         builder.field(AROMATICITY_MODE_FIELD.getPreferredName(), aromaticityMode.name().toLowerCase());
         builder.field(TAUTOMER_MODE_FIELD.getPreferredName(), tautomerMode.name().toLowerCase());
         builder.field(MATCHING_LIMIT_FIELD.getPreferredName(), matchingLimit);
+        builder.field(TOP_K_FIELD.getPreferredName(), topK);
+        builder.field(MAX_COST_FIELD.getPreferredName(), maxCost);
+        builder.field(SAMPLE_SIZE_FIELD.getPreferredName(), sampleSize);
         printBoostAndQueryName(builder);
         builder.endObject();
     }
 
 
     @Override
-    protected Query doToQuery(QueryShardContext arg0) throws IOException
+    protected QueryBuilder doRewrite(QueryRewriteContext context) throws IOException
     {
-        try
-        {
-            return new SubstructureQuery(fieldName, molecule, queryFormat, searchMode, chargeMode, isotopeMode,
-                    radicalMode, stereoMode, aromaticityMode, tautomerMode, matchingLimit);
-        }
-        catch(CDKException | TimeoutException e)
-        {
-            throw new IOException(e);
-        }
+        // the query is compiled once, on the coordinating node, and the shards only deserialize it
+        if(compiled != null)
+            return this;
+
+        return new SubstructureQueryBuilder(this, compile());
+    }
+
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException
+    {
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        ScreeningPlanner planner = CostBasedScreeningPlanner.DEFAULT;
+
+        if(fieldType instanceof StructureFingerprintFieldMapper.FieldType)
+            planner = ((StructureFingerprintFieldMapper.FieldType) fieldType).screeningPlanner();
+
+        // the query can lower the limit of the node, but not raise it
+        long limit = defaultMaxCost;
+
+        if(maxCost > 0 && (limit <= 0 || maxCost < limit))
+            limit = maxCost;
+
+        return new SubstructureQuery(fieldName, molecule, queryFormat, searchMode, chargeMode, isotopeMode,
+                radicalMode, stereoMode, aromaticityMode, tautomerMode, matchingLimit, topK, limit, sampleSize,
+                planner, compiled != null ? compiled : compile());
+    }
+
+
+    static void setDefaultMaxCost(long maxCost)
+    {
+        defaultMaxCost = maxCost;
+    }
+
+
+    private SubstructureQuery.CompiledQuery compile() throws IOException
+    {
+        return CompiledQueryCache.get(compilationKey(), key -> {
+            try
+            {
+                return SubstructureQuery.compile(molecule, queryFormat, searchMode, chargeMode, isotopeMode,
+                        radicalMode, stereoMode, aromaticityMode, tautomerMode);
+            }
+            catch(CDKException | TimeoutException e)
+            {
+                throw new IOException(e);
+            }
+        });
+    }
+
+
+    private List<Object> compilationKey()
+    {
+        return Arrays.asList(NAME, molecule, queryFormat, searchMode, chargeMode, isotopeMode, radicalMode,
+                stereoMode, aromaticityMode, tautomerMode);
     }
 
 
@@ -306,7 +532,8 @@ public class SubstructureQueryBuilder extends AbstractQueryBuilder<SubstructureQ
                 && Objects.equals(chargeMode, other.chargeMode) && Objects.equals(isotopeMode, other.isotopeMode)
                 && Objects.equals(radicalMode, other.radicalMode) && Objects.equals(stereoMode, other.stereoMode)
                 && Objects.equals(aromaticityMode, other.aromaticityMode)
-                && Objects.equals(tautomerMode, other.tautomerMode) && matchingLimit == other.matchingLimit;
+                && Objects.equals(tautomerMode, other.tautomerMode) && matchingLimit == other.matchingLimit
+                && topK == other.topK && maxCost == other.maxCost && sampleSize == other.sampleSize;
     }
 
 
@@ -0,0 +1,162 @@
+package cz.iocb.elchem.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.Rewriteable;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import cz.iocb.elchem.lucene.SubstructureQuery;
+
+
+
+public class TransportSubstructureCountAction extends TransportBroadcastAction<SubstructureCountAction.Request,
+        SubstructureCountAction.Response, SubstructureCountAction.ShardRequest, SubstructureCountAction.ShardResponse>
+{
+    private final IndicesService indicesService;
+    private final ThreadPool threadPool;
+
+
+    @Inject
+    public TransportSubstructureCountAction(ClusterService clusterService, TransportService transportService,
+            IndicesService indicesService, ThreadPool threadPool, ActionFilters actionFilters,
+            IndexNameExpressionResolver indexNameExpressionResolver)
+    {
+        super(SubstructureCountAction.NAME, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, SubstructureCountAction.Request::new,
+                SubstructureCountAction.ShardRequest::new, ThreadPool.Names.SEARCH);
+
+        this.indicesService = indicesService;
+        this.threadPool = threadPool;
+    }
+
+
+    @Override
+    protected SubstructureCountAction.ShardRequest newShardRequest(int numShards, ShardRouting shard,
+            SubstructureCountAction.Request request)
+    {
+        return new SubstructureCountAction.ShardRequest(shard.shardId(), request);
+    }
+
+
+    @Override
+    protected SubstructureCountAction.ShardResponse readShardResponse(StreamInput in) throws IOException
+    {
+        return new SubstructureCountAction.ShardResponse(in);
+    }
+
+
+    @Override
+    protected SubstructureCountAction.ShardResponse shardOperation(SubstructureCountAction.ShardRequest request,
+            Task task) throws IOException
+    {
+        IndexService indexService = indicesService.indexServiceSafe(request.shardId().getIndex());
+        IndexShard indexShard = indexService.getShard(request.shardId().id());
+
+        try(Engine.Searcher searcher = indexShard.acquireSearcher("elchem_substructure_count"))
+        {
+            QueryShardContext context = indexService.newQueryShardContext(request.shardId().id(), searcher,
+                    System::currentTimeMillis, null);
+
+            QueryBuilder builder = Rewriteable.rewrite(request.query(), context, true);
+            Query query = builder.toQuery(context);
+
+            while(query instanceof BoostQuery)
+                query = ((BoostQuery) query).getQuery();
+
+            // the segments are verified by a pool of their own, the search thread only waits for them
+            IndexSearcher counter = new IndexSearcher(searcher.getIndexReader(),
+                    threadPool.executor(ElchemPlugin.COUNT_THREAD_POOL));
+
+            long count;
+
+            if(query instanceof SubstructureQuery)
+                count = ((SubstructureQuery) query).count(counter, request.cap());
+            else
+                count = counter.count(query);
+
+            return new SubstructureCountAction.ShardResponse(request.shardId(), count);
+        }
+    }
+
+
+    @Override
+    protected SubstructureCountAction.Response newResponse(SubstructureCountAction.Request request,
+            AtomicReferenceArray shardsResponses, ClusterState clusterState)
+    {
+        int successfulShards = 0;
+        int failedShards = 0;
+        long count = 0;
+        List<DefaultShardOperationFailedException> shardFailures = new ArrayList<DefaultShardOperationFailedException>();
+
+        for(int i = 0; i < shardsResponses.length(); i++)
+        {
+            Object response = shardsResponses.get(i);
+
+            if(response instanceof BroadcastShardOperationFailedException)
+            {
+                failedShards++;
+                shardFailures.add(new DefaultShardOperationFailedException(
+                        (BroadcastShardOperationFailedException) response));
+            }
+            else if(response != null)
+            {
+                successfulShards++;
+                count += ((SubstructureCountAction.ShardResponse) response).getCount();
+            }
+        }
+
+        boolean capped = request.cap() > 0 && count >= request.cap();
+
+        return new SubstructureCountAction.Response(capped ? request.cap() : count, capped, shardsResponses.length(),
+                successfulShards, failedShards, shardFailures);
+    }
+
+
+    @Override
+    protected GroupShardsIterator<ShardIterator> shards(ClusterState clusterState,
+            SubstructureCountAction.Request request, String[] concreteIndices)
+    {
+        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, null);
+    }
+
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, SubstructureCountAction.Request request)
+    {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, SubstructureCountAction.Request request,
+            String[] concreteIndices)
+    {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+}
@@ -0,0 +1,104 @@
+package cz.iocb.elchem.elasticsearch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+import cz.iocb.elchem.lucene.VerificationBudget;
+
+
+
+/*
+ * Installs the verification budget for the query phase of a shard search. The budget is limited by the timeout of
+ * the search request and by the node-wide verification timeout; the exhausted budget is reported as a timed out
+ * search, so that the partial results are marked in the response. The task of the search is watched outside of the
+ * search threads, so that its cancellation also stops a running native match.
+ */
+public class VerificationBudgetListener implements SearchOperationListener
+{
+    private static final AtomicLong timedOut = new AtomicLong();
+    private static final AtomicLong cancelled = new AtomicLong();
+
+    private static final TimeValue cancellationCheckInterval = TimeValue.timeValueMillis(100);
+    private static final ThreadLocal<Cancellable> watchers = new ThreadLocal<Cancellable>();
+
+    private final TimeValue timeout;
+
+
+    public VerificationBudgetListener(TimeValue timeout)
+    {
+        this.timeout = timeout;
+    }
+
+
+    public static long getTimedOut()
+    {
+        return timedOut.get();
+    }
+
+
+    public static long getCancelled()
+    {
+        return cancelled.get();
+    }
+
+
+    @Override
+    public void onPreQueryPhase(SearchContext context)
+    {
+        long nanos = timeout.nanos();
+        TimeValue requestTimeout = context.timeout();
+
+        if(requestTimeout != null && requestTimeout.nanos() > 0 && (nanos <= 0 || requestTimeout.nanos() < nanos))
+            nanos = requestTimeout.nanos();
+
+        VerificationBudget budget = new VerificationBudget(nanos, context::isCancelled);
+        VerificationBudget.begin(budget);
+
+        watchers.set(context.indexShard().getThreadPool().scheduleWithFixedDelay(() -> {
+            if(context.isCancelled())
+                budget.cancel();
+        }, cancellationCheckInterval, ThreadPool.Names.SAME));
+    }
+
+
+    @Override
+    public void onQueryPhase(SearchContext context, long tookInNanos)
+    {
+        finish(context);
+    }
+
+
+    @Override
+    public void onFailedQueryPhase(SearchContext context)
+    {
+        finish(context);
+    }
+
+
+    private static void finish(SearchContext context)
+    {
+        Cancellable watcher = watchers.get();
+        watchers.remove();
+
+        if(watcher != null)
+            watcher.cancel();
+
+        VerificationBudget budget = VerificationBudget.end();
+
+        if(budget == null)
+            return;
+
+        if(budget.isCancelled())
+        {
+            cancelled.incrementAndGet();
+        }
+        else if(budget.isTimedOut())
+        {
+            timedOut.incrementAndGet();
+            context.queryResult().searchTimedOut(true);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cz.iocb.elchem.lucene;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+
+
+public class CostBasedScreeningPlanner implements ScreeningPlanner
+{
+    public static final int DEFAULT_MAX_BITS = 32;
+    public static final int DEFAULT_ATOM_COVERAGE = 2;
+    public static final int DEFAULT_VERIFICATION_COST = 1000;
+
+    public static final CostBasedScreeningPlanner DEFAULT = new CostBasedScreeningPlanner(DEFAULT_MAX_BITS,
+            DEFAULT_ATOM_COVERAGE, DEFAULT_VERIFICATION_COST);
+
+    private final int maxBits;
+    private final int atomCoverage;
+    private final int verificationCost;
+
+
+    // the verification cost is expressed in the number of posting list advances that one verification is worth
+    public CostBasedScreeningPlanner(int maxBits, int atomCoverage, int verificationCost)
+    {
+        if(maxBits < 1 || atomCoverage < 1 || verificationCost < 1)
+            throw new IllegalArgumentException();
+
+        this.maxBits = maxBits;
+        this.atomCoverage = atomCoverage;
+        this.verificationCost = verificationCost;
+    }
+
+
+    @Override
+    public int[] plan(int docCount, int[] docFreqs, int[][] bitAtoms, int atomCount)
+    {
+        Integer[] order = IntStream.range(0, docFreqs.length).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingInt(i -> docFreqs[i]));
+
+        int[] selected = new int[Math.min(maxBits, order.length)];
+        int size = 0;
+
+        int[] coverage = new int[atomCount];
+        int uncovered = atomCount;
+
+        double candidates = docCount;
+
+        for(int i : order)
+        {
+            if(size > 0 && (uncovered <= 0 || size >= maxBits))
+                break;
+
+            double remaining = narrow(candidates, docCount, docFreqs[i]);
+
+            // each further clause costs an advance per candidate and saves the verification of the rejected ones
+            if(size > 0 && (candidates - remaining) * verificationCost <= candidates)
+                break;
+
+            boolean found = false;
+
+            for(int a : bitAtoms[i])
+            {
+                if(coverage[a] < atomCoverage)
+                {
+                    found = true;
+                    coverage[a]++;
+
+                    if(coverage[a] == atomCoverage)
+                        uncovered--;
+                }
+            }
+
+            if(found || size == 0)
+            {
+                selected[size++] = i;
+                candidates = remaining;
+            }
+        }
+
+        return Arrays.copyOf(selected, size);
+    }
+
+
+    @Override
+    public double estimate(int docCount, int[] docFreqs)
+    {
+        double candidates = docCount;
+
+        for(int docFreq : docFreqs)
+            candidates = narrow(candidates, docCount, docFreq);
+
+        return candidates;
+    }
+
+
+    // the bits are assumed to be independent
+    private static double narrow(double candidates, int docCount, int docFreq)
+    {
+        return docCount > 0 ? candidates * docFreq / docCount : 0;
+    }
+
+
+    public int getMaxBits()
+    {
+        return maxBits;
+    }
+
+
+    public int getAtomCoverage()
+    {
+        return atomCoverage;
+    }
+
+
+    public int getVerificationCost()
+    {
+        return verificationCost;
+    }
+}
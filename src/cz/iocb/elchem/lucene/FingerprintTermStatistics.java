@@ -0,0 +1,88 @@
+package cz.iocb.elchem.lucene;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+
+
+public class FingerprintTermStatistics
+{
+    private static final int maxCachedBits = 1 << 16;
+
+    private static final Map<IndexReader.CacheKey, Map<String, FingerprintTermStatistics>> cache =
+            new ConcurrentHashMap<IndexReader.CacheKey, Map<String, FingerprintTermStatistics>>();
+
+    private final IndexReader reader;
+    private final String field;
+    private final int docCount;
+    private final Map<Integer, Integer> docFreqs = new ConcurrentHashMap<Integer, Integer>();
+
+
+    private FingerprintTermStatistics(IndexReader reader, String field) throws IOException
+    {
+        this.reader = reader;
+        this.field = field;
+        this.docCount = reader.getDocCount(field);
+    }
+
+
+    public static FingerprintTermStatistics get(IndexReader reader, String field) throws IOException
+    {
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+
+        if(helper == null)
+            return new FingerprintTermStatistics(reader, field);
+
+        Map<String, FingerprintTermStatistics> fields = cache.get(helper.getKey());
+
+        if(fields == null)
+        {
+            fields = new ConcurrentHashMap<String, FingerprintTermStatistics>();
+            Map<String, FingerprintTermStatistics> previous = cache.putIfAbsent(helper.getKey(), fields);
+
+            if(previous != null)
+                fields = previous;
+            else
+                helper.addClosedListener(cache::remove);
+        }
+
+        FingerprintTermStatistics statistics = fields.get(field);
+
+        if(statistics == null)
+        {
+            // the reader is the same for all entries of the key, so a concurrently created instance is equivalent
+            statistics = new FingerprintTermStatistics(reader, field);
+            FingerprintTermStatistics previous = fields.putIfAbsent(field, statistics);
+
+            if(previous != null)
+                statistics = previous;
+        }
+
+        return statistics;
+    }
+
+
+    public int getDocCount()
+    {
+        return docCount;
+    }
+
+
+    public int docFreq(int bit) throws IOException
+    {
+        Integer docFreq = docFreqs.get(bit);
+
+        if(docFreq != null)
+            return docFreq;
+
+        docFreq = reader.docFreq(new Term(field, new FingerprintBitMapping().bitAsString(bit)));
+
+        if(docFreqs.size() < maxCachedBits)
+            docFreqs.put(bit, docFreq);
+
+        return docFreq;
+    }
+}
@@ -0,0 +1,151 @@
+package cz.iocb.elchem.lucene;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.search.Query;
+
+
+
+/*
+ * Extrapolates the number of hits of sampled substructure queries. The queries take the instance of the current
+ * thread when their weights are created, and each of them records its candidates in a sample of its own. Each
+ * candidate belongs to the sample with a known probability, so the matches of the sample weighted by the inverse
+ * probabilities give an unbiased estimate of the number of hits of the query; the candidates verified only to fill
+ * the page of results are not a part of the estimate.
+ */
+public class SampledHitCount
+{
+    public static class Sample
+    {
+        private final int pageSize;
+        private long hits = 0;
+        private long sampled = 0;
+        private double estimate = 0;
+        private double variance = 0;
+
+
+        private Sample(int pageSize)
+        {
+            this.pageSize = pageSize;
+        }
+
+
+        synchronized boolean isPageFilled()
+        {
+            return hits >= pageSize;
+        }
+
+
+        // the rate is the probability of the candidate to be sampled, zero if it is verified outside of the sample
+        synchronized void record(double rate, boolean matches)
+        {
+            if(matches)
+                hits++;
+
+            if(rate > 0)
+            {
+                sampled++;
+
+                if(matches)
+                {
+                    estimate += 1 / rate;
+                    variance += (1 - rate) / (rate * rate);
+                }
+            }
+        }
+
+
+        // whether any candidates have been sampled
+        public synchronized boolean isSampled()
+        {
+            return sampled > 0;
+        }
+
+
+        public synchronized long getVerifiedHits()
+        {
+            return hits;
+        }
+
+
+        public synchronized long getSampledCandidates()
+        {
+            return sampled;
+        }
+
+
+        public synchronized double getEstimate()
+        {
+            return Math.max(estimate, hits);
+        }
+
+
+        public synchronized double getLowerBound()
+        {
+            return Math.max(estimate - z * Math.sqrt(variance), hits);
+        }
+
+
+        public synchronized double getUpperBound()
+        {
+            return Math.max(estimate + z * Math.sqrt(variance), hits);
+        }
+    }
+
+
+    private static final ThreadLocal<SampledHitCount> current = new ThreadLocal<SampledHitCount>();
+
+    // the quantile of the normal distribution for the 95% confidence interval
+    private static final double z = 1.96;
+
+    private final int pageSize;
+    private final Map<Query, Sample> samples = new LinkedHashMap<Query, Sample>();
+
+
+    public SampledHitCount(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+
+    public static void begin(SampledHitCount count)
+    {
+        current.set(count);
+    }
+
+
+    public static SampledHitCount end()
+    {
+        SampledHitCount count = current.get();
+        current.remove();
+
+        return count;
+    }
+
+
+    public static SampledHitCount current()
+    {
+        return current.get();
+    }
+
+
+    synchronized Sample getSample(Query query)
+    {
+        return samples.computeIfAbsent(query, key -> new Sample(pageSize));
+    }
+
+
+    // the samples of the queries that have sampled any candidates
+    public synchronized List<Sample> getSamples()
+    {
+        List<Sample> list = new ArrayList<Sample>(samples.size());
+
+        for(Sample sample : samples.values())
+            if(sample.isSampled())
+                list.add(sample);
+
+        return list;
+    }
+}
@@ -0,0 +1,12 @@
+package cz.iocb.elchem.lucene;
+
+
+
+public interface ScreeningPlanner
+{
+    // returns the positions of the bits used to screen the candidates, at least one if there is any
+    int[] plan(int docCount, int[] docFreqs, int[][] bitAtoms, int atomCount);
+
+    // returns the expected number of the candidates having all the bits, as assumed by the planning
+    double estimate(int docCount, int[] docFreqs);
+}
@@ -2,16 +2,19 @@ package cz.iocb.elchem.lucene;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
@@ -26,8 +29,8 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
-import org.apache.lucene.util.BytesRef;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import cz.iocb.elchem.fingerprint.IOCBFingerprint;
@@ -47,6 +50,33 @@ import cz.iocb.elchem.molecule.TautomerMode;
 
 public class SimilarStructureQuery extends Query
 {
+    public static class CompiledQuery
+    {
+        private final String name;
+        private final List<List<List<Integer>>> fingerprints;
+
+
+        public CompiledQuery(String name, List<List<List<Integer>>> fingerprints)
+        {
+            this.name = name;
+            this.fingerprints = fingerprints;
+        }
+
+
+        public String getName()
+        {
+            return name;
+        }
+
+
+        // the similarity fingerprints of the individual tautomers
+        public List<List<List<Integer>>> getFingerprints()
+        {
+            return fingerprints;
+        }
+    }
+
+
     public final static int iterationSizeOffset = 1 << 28;
 
     private final String field;
@@ -56,6 +86,9 @@ public class SimilarStructureQuery extends Query
     private final TautomerMode tautomerMode;
     private final float threshold;
     private final int similarityRadius;
+    private final SimilarityMetric metric;
+    private final int topK;
+    private final CompiledQuery compiled;
     private final Query subquery;
     final String name;
 
@@ -63,6 +96,31 @@ public class SimilarStructureQuery extends Query
     public SimilarStructureQuery(String field, String query, QueryFormat queryFormat, float threshold,
             int similarityRadius, AromaticityMode aromaticityMode, TautomerMode tautomerMode)
             throws CDKException, IOException, TimeoutException
+    {
+        this(field, query, queryFormat, threshold, similarityRadius, aromaticityMode, tautomerMode,
+                compile(query, queryFormat, similarityRadius, aromaticityMode, tautomerMode));
+    }
+
+
+    public SimilarStructureQuery(String field, String query, QueryFormat queryFormat, float threshold,
+            int similarityRadius, AromaticityMode aromaticityMode, TautomerMode tautomerMode, CompiledQuery compiled)
+    {
+        this(field, query, queryFormat, threshold, similarityRadius, aromaticityMode, tautomerMode,
+                SimilarityMetric.TANIMOTO, 0, compiled);
+    }
+
+
+    /*
+     * With a positive topK, the query matches at least the topK documents most similar to the query molecule (and
+     * the ones tied with them); the threshold is then the lower limit of their similarity. The documents less similar
+     * than the topK-th best one found so far are rejected, and the screening of the candidates is narrowed to them.
+     * The other matched documents are the ones that were among the best when they were reached, so their number
+     * depends on the order of the search; it is only a lower bound of the number of the documents that reach the
+     * threshold.
+     */
+    public SimilarStructureQuery(String field, String query, QueryFormat queryFormat, float threshold,
+            int similarityRadius, AromaticityMode aromaticityMode, TautomerMode tautomerMode, SimilarityMetric metric,
+            int topK, CompiledQuery compiled)
     {
         this.field = field;
         this.query = query;
@@ -71,26 +129,63 @@ public class SimilarStructureQuery extends Query
         this.similarityRadius = similarityRadius;
         this.aromaticityMode = aromaticityMode;
         this.tautomerMode = tautomerMode;
+        this.metric = metric;
+        this.topK = topK;
+        this.compiled = compiled;
+        this.name = compiled.name;
+
+        ArrayList<Query> subqueries = new ArrayList<Query>(compiled.fingerprints.size());
 
+        for(List<List<Integer>> fp : compiled.fingerprints)
+            subqueries.add(new SingleSimilarityQuery(fp, null));
+
+        this.subquery = new DisjunctionMaxQuery(subqueries, 0);
+    }
+
+
+    public static CompiledQuery compile(String query, QueryFormat queryFormat, int similarityRadius,
+            AromaticityMode aromaticityMode, TautomerMode tautomerMode)
+            throws CDKException, IOException, TimeoutException
+    {
         QueryMolecule queryMolecule = MoleculeCreator.translateQuery(query, queryFormat,
                 ChargeMode.DEFAULT_AS_UNCHARGED, IsotopeMode.DEFAULT_AS_STANDARD, RadicalMode.DEFAULT_AS_STANDARD,
                 StereoMode.IGNORE, aromaticityMode, tautomerMode);
 
-        this.name = queryMolecule.name;
+        List<List<List<Integer>>> fingerprints = new ArrayList<List<List<Integer>>>(queryMolecule.tautomers.size());
 
-        ArrayList<Query> subqueries = new ArrayList<Query>(queryMolecule.tautomers.size());
-
-        for(IAtomContainer molecule : queryMolecule.tautomers)
-            subqueries.add(new SingleSimilarityQuery(molecule));
+        for(IAtomContainer tautomer : queryMolecule.tautomers)
+        {
+            BinaryMolecule molecule = new BinaryMolecule(BinaryMoleculeBuilder.asBytes(tautomer, false));
+            fingerprints.add(IOCBFingerprint.getSimilarityFingerprint(molecule, similarityRadius));
+        }
 
-        this.subquery = new DisjunctionMaxQuery(subqueries, 0);
+        return new CompiledQuery(queryMolecule.name, fingerprints);
     }
 
 
     @Override
     public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
     {
-        return subquery.createWeight(searcher, scoreMode, boost);
+        if(topK <= 0)
+            return subquery.createWeight(searcher, scoreMode, boost);
+
+        // the similarities of the documents are needed to find the nearest neighbours
+        NearestNeighbours neighbours = new NearestNeighbours(topK);
+        ArrayList<Query> subqueries = new ArrayList<Query>(compiled.fingerprints.size());
+
+        for(List<List<Integer>> fp : compiled.fingerprints)
+            subqueries.add(new SingleSimilarityQuery(fp, neighbours));
+
+        Weight weight = new DisjunctionMaxQuery(subqueries, 0).createWeight(searcher,
+                scoreMode.needsScores() ? scoreMode : ScoreMode.COMPLETE, boost);
+
+        return new NearestNeighbourWeight(weight, neighbours);
+    }
+
+
+    public int getTopK()
+    {
+        return topK;
     }
 
 
@@ -105,7 +200,8 @@ public class SimilarStructureQuery extends Query
     {
         return field.equals(other.field) && query.equals(other.query) && queryFormat.equals(other.queryFormat)
                 && aromaticityMode.equals(other.aromaticityMode) && tautomerMode.equals(other.tautomerMode)
-                && threshold == other.threshold && similarityRadius == other.similarityRadius;
+                && threshold == other.threshold && similarityRadius == other.similarityRadius
+                && metric.equals(other.metric) && topK == other.topK;
     }
 
 
@@ -117,6 +213,8 @@ public class SimilarStructureQuery extends Query
         result = 31 * result + query.hashCode();
         result = 3 * result + aromaticityMode.hashCode();
         result = 3 * result + tautomerMode.hashCode();
+        result = 3 * result + metric.hashCode();
+        result = 3 * result + topK;
         return result;
     }
 
@@ -129,24 +227,230 @@ public class SimilarStructureQuery extends Query
     }
 
 
+    /*
+     * The best similarities found by a nearest neighbour search. The topK-th best one is the lower limit of the
+     * similarity of the documents that can still be among the nearest neighbours.
+     */
+    private static class NearestNeighbours
+    {
+        private final float[] heap;
+        private int size = 0;
+        private volatile float minScore = 0;
+
+
+        NearestNeighbours(int topK)
+        {
+            this.heap = new float[topK];
+        }
+
+
+        float getMinScore()
+        {
+            return minScore;
+        }
+
+
+        synchronized void add(float score)
+        {
+            int position;
+
+            if(size < heap.length)
+            {
+                position = size++;
+
+                for(int parent = position - 1 >> 1; position > 0 && heap[parent] > score; parent = position - 1 >> 1)
+                {
+                    heap[position] = heap[parent];
+                    position = parent;
+                }
+
+                heap[position] = score;
+
+                if(size < heap.length)
+                    return;
+            }
+            else if(score > heap[0])
+            {
+                position = 0;
+
+                for(int child = 1; child < size; child = 2 * position + 1)
+                {
+                    if(child + 1 < size && heap[child + 1] < heap[child])
+                        child++;
+
+                    if(heap[child] >= score)
+                        break;
+
+                    heap[position] = heap[child];
+                    position = child;
+                }
+
+                heap[position] = score;
+            }
+
+            minScore = heap[0];
+        }
+    }
+
+
+    // records the similarities of the matched documents, so the matches depend on the documents reached before
+    class NearestNeighbourWeight extends Weight
+    {
+        private final Weight innerWeight;
+        private final NearestNeighbours neighbours;
+
+
+        NearestNeighbourWeight(Weight innerWeight, NearestNeighbours neighbours)
+        {
+            super(SimilarStructureQuery.this);
+            this.innerWeight = innerWeight;
+            this.neighbours = neighbours;
+        }
+
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException
+        {
+            Scorer scorer = innerWeight.scorer(context);
+
+            if(scorer == null)
+                return null;
+
+            return new NearestNeighbourScorer(scorer);
+        }
+
+
+        @Override
+        public boolean isCacheable(LeafReaderContext context)
+        {
+            return false;
+        }
+
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException
+        {
+            return innerWeight.explain(context, doc);
+        }
+
+
+        @Deprecated
+        @Override
+        public void extractTerms(Set<Term> set)
+        {
+            innerWeight.extractTerms(set);
+        }
+
+
+        class NearestNeighbourScorer extends Scorer
+        {
+            private final Scorer in;
+            private final TwoPhaseIterator twoPhaseIterator;
+
+
+            NearestNeighbourScorer(Scorer in)
+            {
+                super(NearestNeighbourWeight.this);
+                this.in = in;
+
+                TwoPhaseIterator inner = in.twoPhaseIterator();
+
+                this.twoPhaseIterator = new TwoPhaseIterator(inner.approximation())
+                {
+                    @Override
+                    public boolean matches() throws IOException
+                    {
+                        if(!inner.matches())
+                            return false;
+
+                        neighbours.add(in.score());
+                        return true;
+                    }
+
+
+                    @Override
+                    public float matchCost()
+                    {
+                        return inner.matchCost();
+                    }
+                };
+            }
+
+
+            @Override
+            public int docID()
+            {
+                return in.docID();
+            }
+
+
+            @Override
+            public int advanceShallow(int target) throws IOException
+            {
+                return in.advanceShallow(target);
+            }
+
+
+            @Override
+            public float getMaxScore(int upTo) throws IOException
+            {
+                return in.getMaxScore(upTo);
+            }
+
+
+            @Override
+            public void setMinCompetitiveScore(float minScore) throws IOException
+            {
+                in.setMinCompetitiveScore(minScore);
+            }
+
+
+            @Override
+            public float score() throws IOException
+            {
+                return in.score();
+            }
+
+
+            @Override
+            public TwoPhaseIterator twoPhaseIterator()
+            {
+                return twoPhaseIterator;
+            }
+
+
+            @Override
+            public DocIdSetIterator iterator()
+            {
+                return TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+            }
+        }
+    }
+
+
     class SingleSimilarityQuery extends Query
     {
         private final Query parentQuery;
-        private final IAtomContainer tautomer;
+        private final NearestNeighbours neighbours;
 
         private final List<List<Integer>> fp;
+        private final int[] fpValues;
+        private final int[] fpBounds;
+        private final long[] fpFolded;
         private final int fpSize;
 
 
-        SingleSimilarityQuery(IAtomContainer tautomer) throws CDKException, IOException
+        SingleSimilarityQuery(List<List<Integer>> fp, NearestNeighbours neighbours)
         {
-            this.parentQuery = SimilarStructureQuery.this;
-            this.tautomer = tautomer;
-
-            BinaryMolecule molecule = new BinaryMolecule(BinaryMoleculeBuilder.asBytes(tautomer, false));
+            int[][] flattened = SimilarityFingerprint.flatten(fp);
 
-            this.fp = IOCBFingerprint.getSimilarityFingerprint(molecule, similarityRadius);
-            this.fpSize = fp.stream().map(i -> i.size()).reduce(0, Integer::sum);
+            this.parentQuery = SimilarStructureQuery.this;
+            this.neighbours = neighbours;
+            this.fp = fp;
+            this.fpValues = flattened[0];
+            this.fpBounds = flattened[1];
+            this.fpFolded = SimilarityFingerprint.fold(fpValues, fpBounds);
+            this.fpSize = fpValues.length;
         }
 
 
@@ -166,7 +470,7 @@ public class SimilarStructureQuery extends Query
 
         private boolean equalsTo(SingleSimilarityQuery other)
         {
-            return parentQuery.equals(other.parentQuery) && tautomer.equals(other.tautomer);
+            return parentQuery.equals(other.parentQuery) && fp.equals(other.fp);
         }
 
 
@@ -175,7 +479,7 @@ public class SimilarStructureQuery extends Query
         {
             int result = classHash();
             result = 31 * result + parentQuery.hashCode();
-            result = 31 * result + tautomer.hashCode();
+            result = 31 * result + fp.hashCode();
             return result;
         }
 
@@ -190,39 +494,66 @@ public class SimilarStructureQuery extends Query
 
         class SingleSimilarityWeight extends Weight
         {
+            private final IndexSearcher searcher;
+            private final ScoreMode scoreMode;
+            private final float boost;
+            private final VerificationBudget budget;
+            private final int[] bits;
+            private final int[] bitCounts;
+            private final Map<List<Integer>, Weight> innerWeights = new ConcurrentHashMap<List<Integer>, Weight>();
             private final Weight innerWeight;
 
 
             public SingleSimilarityWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
             {
                 super(SimilarStructureQuery.this);
+                this.searcher = searcher;
+                this.scoreMode = scoreMode;
+                this.boost = boost;
+                this.budget = VerificationBudget.current();
 
-                Builder builder = new BooleanQuery.Builder();
-                FingerprintBitMapping mapping = new FingerprintBitMapping();
+                FingerprintTermStatistics statistics = FingerprintTermStatistics.get(searcher.getIndexReader(), field);
+                Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+
+                for(List<Integer> segment : fp)
+                {
+                    for(Integer bit : segment)
+                        counts.merge(bit, 1, Integer::sum);
+                }
 
-                int min = similarityRadius * iterationSizeOffset + (int) Math.floor(fpSize * threshold);
-                int max = similarityRadius * iterationSizeOffset + (int) Math.ceil(fpSize / threshold);
+                int[] unique = counts.keySet().stream().mapToInt(Integer::intValue).toArray();
+                int[] docFreqs = new int[unique.length];
 
-                builder.add(IntPoint.newRangeQuery(field, min, max), BooleanClause.Occur.MUST);
+                for(int i = 0; i < unique.length; i++)
+                    docFreqs[i] = statistics.docFreq(unique[i]);
 
-                for(int bit : selectFingerprintBits(searcher))
-                    builder.add(new TermQuery(new Term(field, mapping.bitAsString(bit))), BooleanClause.Occur.SHOULD);
+                // the rarest bits are selected first
+                Integer[] order = IntStream.range(0, unique.length).boxed().toArray(Integer[]::new);
+                Arrays.sort(order, Comparator.comparingInt(i -> docFreqs[i]));
 
-                builder.setMinimumNumberShouldMatch(1);
+                this.bits = new int[order.length];
+                this.bitCounts = new int[order.length];
+
+                for(int i = 0; i < order.length; i++)
+                {
+                    bits[i] = unique[order[i]];
+                    bitCounts[i] = counts.get(bits[i]);
+                }
 
-                this.innerWeight = new ConstantScoreQuery(builder.build()).createWeight(searcher, scoreMode, boost);
+                this.innerWeight = getInnerWeight(getPlan(0));
             }
 
 
             @Override
             public Scorer scorer(LeafReaderContext context) throws IOException
             {
-                Scorer scorer = innerWeight.scorer(context);
+                List<Integer> plan = getPlan(neighbours == null ? 0 : neighbours.getMinScore());
+                Scorer scorer = getInnerWeight(plan).scorer(context);
 
                 if(scorer == null)
                     return null;
 
-                return new SingleSimilarityScorer(context, scorer);
+                return new SingleSimilarityScorer(context, scorer, plan);
             }
 
 
@@ -253,77 +584,135 @@ public class SimilarStructureQuery extends Query
             }
 
 
-            private Set<Integer> selectFingerprintBits(IndexSearcher searcher) throws IOException
+            /*
+             * Returns the screening of the candidates that can reach the given score: the range of their fingerprint
+             * sizes and the number of the selected bits, of which the candidates must contain at least one. A higher
+             * score gives a subset of the candidates.
+             */
+            private List<Integer> getPlan(float minScore)
             {
-                int limit = (int) Math.ceil(fpSize * (1 - threshold));
+                float limit = Math.max(threshold, minScore);
 
-                FingerprintBitMapping mapping = new FingerprintBitMapping();
-                Map<Integer, Integer> bits = new HashMap<Integer, Integer>();
-                Map<Integer, Integer> ordered = new TreeMap<Integer, Integer>();
+                int offset = similarityRadius * iterationSizeOffset;
+                int min = offset + metric.minTargetSize(fpSize, limit);
+                int max = offset + Math.min(metric.maxTargetSize(fpSize, limit), iterationSizeOffset - 1);
 
-                for(List<Integer> segment : fp)
-                {
-                    for(Integer i : segment)
-                    {
-                        Integer count = bits.get(i);
+                int missing = metric.maxMissingFeatures(fpSize, limit);
+                int selected = 0;
 
-                        if(count == null)
-                        {
-                            bits.put(i, 1);
-                            ordered.put(searcher.getIndexReader().docFreq(new Term(field, mapping.bitAsString(i))), i);
-                        }
-                        else
-                        {
-                            bits.put(i, count + 1);
-                        }
-                    }
-                }
+                for(int count = 0; selected < bits.length && count <= missing; selected++)
+                    count += bitCounts[selected];
+
+                return Arrays.asList(min, max, selected);
+            }
 
 
-                Set<Integer> selected = new HashSet<Integer>();
+            private Weight getInnerWeight(List<Integer> plan) throws IOException
+            {
+                Weight weight = innerWeights.get(plan);
 
-                int count = 0;
+                if(weight != null)
+                    return weight;
 
-                for(Integer bit : ordered.values())
-                {
-                    selected.add(bit);
-                    count += bits.get(bit);
+                Builder builder = new BooleanQuery.Builder();
+                FingerprintBitMapping mapping = new FingerprintBitMapping();
 
-                    if(count > limit)
-                        break;
-                }
+                builder.add(IntPoint.newRangeQuery(field, plan.get(0), plan.get(1)), BooleanClause.Occur.MUST);
+
+                for(int i = 0; i < plan.get(2); i++)
+                    builder.add(new TermQuery(new Term(field, mapping.bitAsString(bits[i]))),
+                            BooleanClause.Occur.SHOULD);
+
+                builder.setMinimumNumberShouldMatch(1);
+
+                weight = new ConstantScoreQuery(builder.build()).createWeight(searcher, scoreMode, boost);
+                Weight previous = innerWeights.putIfAbsent(plan, weight);
 
-                return selected;
+                return previous != null ? previous : weight;
             }
 
 
             class SingleSimilarityScorer extends Scorer
             {
-                private int docID = -1;
                 private float score = 0;
-                private final Scorer innerScorer;
+                private float minCompetitiveScore = 0;
+                private final LeafReaderContext context;
+                private final DocIdSetIterator approximation;
                 private final BinaryDocValues molDocValue;
+                private final SimilarityFingerprint.Decoder decoder;
+                private final TwoPhaseIterator twoPhaseIterator;
+                private int verified = 0;
+                private boolean exhausted = false;
+                private float[] blockBounds;
 
 
-                protected SingleSimilarityScorer(LeafReaderContext context, Scorer scorer) throws IOException
+                protected SingleSimilarityScorer(LeafReaderContext context, Scorer scorer, List<Integer> plan)
+                        throws IOException
                 {
                     super(SingleSimilarityWeight.this);
-                    this.innerScorer = scorer;
+                    this.context = context;
+                    this.approximation = new BlockBoundIterator(scorer.iterator(), plan);
                     this.molDocValue = DocValues.getBinary(context.reader(), field);
+                    this.decoder = new SimilarityFingerprint.Decoder(fpBounds.length - 1);
+
+                    // the candidate fingerprint has roughly the size of the query one
+                    float matchCost = 2 * fpSize;
+
+                    this.twoPhaseIterator = new TwoPhaseIterator(approximation)
+                    {
+                        @Override
+                        public boolean matches() throws IOException
+                        {
+                            // the comparison is cheap, so the budget is checked only occasionally
+                            if(budget != null && (verified++ & 0xFF) == 0)
+                                exhausted = budget.isExhausted();
+
+                            return !exhausted && isValid();
+                        }
+
+
+                        @Override
+                        public float matchCost()
+                        {
+                            return matchCost;
+                        }
+                    };
                 }
 
 
                 @Override
                 public int docID()
                 {
-                    return docID;
+                    return approximation.docID();
+                }
+
+
+                @Override
+                public int advanceShallow(int target) throws IOException
+                {
+                    int upTo = target | SimilarityFingerprint.BLOCK_SIZE - 1;
+
+                    return upTo < context.reader().maxDoc() - 1 ? upTo : DocIdSetIterator.NO_MORE_DOCS;
                 }
 
 
                 @Override
                 public float getMaxScore(int upTo) throws IOException
                 {
-                    return 1.0f;
+                    float maxScore = 0;
+                    int last = Math.min(upTo, context.reader().maxDoc() - 1) >> SimilarityFingerprint.BLOCK_SHIFT;
+
+                    for(int block = Math.max(docID(), 0) >> SimilarityFingerprint.BLOCK_SHIFT; block <= last; block++)
+                        maxScore = Math.max(maxScore, getBlockBound(block));
+
+                    return maxScore;
+                }
+
+
+                @Override
+                public void setMinCompetitiveScore(float minScore)
+                {
+                    minCompetitiveScore = minScore;
                 }
 
 
@@ -336,100 +725,190 @@ public class SimilarStructureQuery extends Query
 
                 boolean isValid() throws IOException
                 {
-                    molDocValue.advanceExact(docID);
-                    BytesRef data = molDocValue.binaryValue();
+                    molDocValue.advanceExact(approximation.docID());
+                    decoder.read(molDocValue.binaryValue());
 
-                    int offset = data.offset;
-                    int dbSize = 0;
-                    int shared = 0;
+                    int dbSize = decoder.size();
+                    float minScore = getMinScore();
 
-                    for(List<Integer> iteration : fp)
+                    if(minScore > 0 && getMaxSimilarity(dbSize, dbSize) < minScore)
+                        return false;
+
+                    // most of the screened candidates are rejected by the folded bits without reading their features
+                    if(decoder.hasFoldedBits())
                     {
-                        int size = 0;
+                        int maxShared = decoder.getMaxShared(fpFolded, fpBounds);
+                        float bound = metric.similarity(maxShared, fpSize, dbSize);
 
-                        for(int b = 0; b < Integer.BYTES; b++)
-                            size |= Byte.toUnsignedInt(data.bytes[offset + b]) << (b * 8);
+                        if(bound < threshold || bound < minScore)
+                            return false;
+                    }
 
-                        for(int idx = 0, i = 1; i <= size; i++)
-                        {
-                            int value = 0;
+                    int[] values = decoder.getValues();
+                    int shared = 0;
 
-                            for(int b = 0; b < 4; b++)
-                                value |= Byte.toUnsignedInt(data.bytes[offset + i * Integer.BYTES + b]) << (b * 8);
+                    for(int i = 0; i < fpBounds.length - 1; i++)
+                        shared += SimilarityFingerprint.intersect(fpValues, fpBounds[i], fpBounds[i + 1], values,
+                                decoder.getBound(i), decoder.getBound(i + 1));
 
-                            while(idx < iteration.size() && iteration.get(idx) < value)
-                                idx++;
 
-                            if(idx == iteration.size())
-                                break;
+                    float similarity = metric.similarity(shared, fpSize, dbSize);
 
-                            if(iteration.get(idx) == value)
-                            {
-                                shared++;
-                                idx++;
-                            }
-                        }
+                    if(similarity < threshold || similarity < minScore)
+                        return false;
+
+                    score = similarity;
+                    return true;
+                }
+
+
+                // the documents below the score are not needed by the collector or by the nearest neighbour search
+                private float getMinScore()
+                {
+                    return neighbours == null ? minCompetitiveScore :
+                            Math.max(minCompetitiveScore, neighbours.getMinScore());
+                }
+
+
+                private float getBlockBound(int block) throws IOException
+                {
+                    if(blockBounds == null)
+                    {
+                        int[] sizes = SimilarityFingerprint.getBlockSizes(context.reader(), field, similarityRadius);
+                        int blocks = (context.reader().maxDoc() + SimilarityFingerprint.BLOCK_SIZE - 1)
+                                >> SimilarityFingerprint.BLOCK_SHIFT;
+
+                        blockBounds = new float[blocks];
 
-                        offset += (size + 1) * Integer.BYTES;
-                        dbSize += size;
+                        for(int b = 0; b < blocks; b++)
+                            blockBounds[b] = sizes == null ? 1.0f : getMaxSimilarity(sizes[2 * b], sizes[2 * b + 1]);
                     }
 
+                    return blockBounds[block];
+                }
 
-                    float similarity = shared / (float) (fpSize + dbSize - shared);
 
-                    if(similarity < threshold)
-                        return false;
+                // the candidates of the sizes in the given range cannot be more similar than the returned value
+                private float getMaxSimilarity(int minSize, int maxSize)
+                {
+                    if(minSize > maxSize)
+                        return 0.0f;
 
-                    score = similarity;
-                    return true;
+                    if(fpSize == 0)
+                        return 1.0f;
+
+                    // the bound grows towards the query size
+                    int size = Math.max(minSize, Math.min(fpSize, maxSize));
+
+                    return metric.maxSimilarity(fpSize, size);
+                }
+
+
+                @Override
+                public TwoPhaseIterator twoPhaseIterator()
+                {
+                    return twoPhaseIterator;
                 }
 
 
                 @Override
                 public DocIdSetIterator iterator()
                 {
-                    DocIdSetIterator innerDocIdSetIterator = innerScorer.iterator();
+                    return TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+                }
+
+
+                /*
+                 * Skips the blocks of documents that cannot reach the minimal competitive score. As the score rises,
+                 * the screening is narrowed, at most once per block, and the narrowed candidates are advanced to
+                 * instead.
+                 */
+                class BlockBoundIterator extends DocIdSetIterator
+                {
+                    private DocIdSetIterator in;
+                    private List<Integer> plan;
+                    private int planBlock = -1;
+
 
-                    return new DocIdSetIterator()
+                    BlockBoundIterator(DocIdSetIterator in, List<Integer> plan)
                     {
-                        @Override
-                        public int advance(int target) throws IOException
-                        {
-                            docID = innerDocIdSetIterator.advance(target);
+                        this.in = in;
+                        this.plan = plan;
+                    }
 
-                            if(docID != NO_MORE_DOCS && !isValid())
-                                nextDoc();
 
-                            return docID;
-                        }
+                    private int competitiveTarget(int target) throws IOException
+                    {
+                        float minScore = getMinScore();
 
+                        if(minScore == 0)
+                            return target;
 
-                        @Override
-                        public int nextDoc() throws IOException
+                        int maxDoc = context.reader().maxDoc();
+
+                        while(target < maxDoc
+                                && getBlockBound(target >> SimilarityFingerprint.BLOCK_SHIFT) < minScore)
+                            target = (target | SimilarityFingerprint.BLOCK_SIZE - 1) + 1;
+
+                        return target < maxDoc ? target : DocIdSetIterator.NO_MORE_DOCS;
+                    }
+
+
+                    private int seek(int target) throws IOException
+                    {
+                        int block = target >> SimilarityFingerprint.BLOCK_SHIFT;
+
+                        if(target != DocIdSetIterator.NO_MORE_DOCS && block != planBlock)
                         {
-                            while(true)
+                            planBlock = block;
+                            List<Integer> narrowed = getPlan(getMinScore());
+
+                            // the narrowed candidates are a subset of the current ones, so none before the target
+                            // is missed
+                            if(!narrowed.equals(plan))
                             {
-                                docID = innerDocIdSetIterator.nextDoc();
+                                Scorer scorer = getInnerWeight(narrowed).scorer(context);
 
-                                if(docID == NO_MORE_DOCS || isValid())
-                                    return docID;
+                                in = scorer != null ? scorer.iterator() : DocIdSetIterator.empty();
+                                plan = narrowed;
                             }
                         }
 
+                        return in.advance(target);
+                    }
 
-                        @Override
-                        public int docID()
-                        {
-                            return docID;
-                        }
 
+                    @Override
+                    public int docID()
+                    {
+                        return in.docID();
+                    }
 
-                        @Override
-                        public long cost()
-                        {
-                            return innerDocIdSetIterator.cost();
-                        }
-                    };
+
+                    @Override
+                    public int nextDoc() throws IOException
+                    {
+                        return advance(in.docID() + 1);
+                    }
+
+
+                    @Override
+                    public int advance(int target) throws IOException
+                    {
+                        int doc = seek(competitiveTarget(target));
+
+                        for(int next = competitiveTarget(doc); next != doc; next = competitiveTarget(doc))
+                            doc = seek(next);
+
+                        return doc;
+                    }
+
+
+                    @Override
+                    public long cost()
+                    {
+                        return in.cost();
+                    }
                 }
             }
         }
@@ -0,0 +1,364 @@
+package cz.iocb.elchem.lucene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.PointValues.IntersectVisitor;
+import org.apache.lucene.index.PointValues.Relation;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+
+
+/*
+ * The doc values encoding of the similarity fingerprints. The fingerprint is stored in little-endian order: a header
+ * int with the format version in its highest byte and the number of segments in the remaining ones, the int sizes
+ * of the segments, the folded bits of the segments and the sorted int features of all segments. The folded bits
+ * bound the number of the shared features before the features are read, and the features of the needed segments
+ * are then read in bulk. The first version of the encoding has no folded bits. The legacy encoding interleaves the
+ * size of each segment with its features; it starts with the size of the first segment, whose highest byte is always
+ * zero.
+ */
+public final class SimilarityFingerprint
+{
+    static final int LEGACY_VERSION = 0;
+    static final int UNFOLDED_VERSION = 1;
+    static final int FORMAT_VERSION = 2;
+
+    // the features of each segment are folded into 256 bits
+    static final int FOLDED_SHIFT = 8;
+    static final int FOLDED_WORDS = (1 << FOLDED_SHIFT) / Long.SIZE;
+
+    static final int BLOCK_SHIFT = 7;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private static final Map<IndexReader.CacheKey, Map<List<Object>, int[]>> cache =
+            new ConcurrentHashMap<IndexReader.CacheKey, Map<List<Object>, int[]>>();
+
+
+    private SimilarityFingerprint()
+    {
+    }
+
+
+    public static byte[] encode(List<List<Integer>> fp)
+    {
+        int[][] flattened = flatten(fp);
+        long[] folded = fold(flattened[0], flattened[1]);
+
+        ByteBuffer buffer = ByteBuffer.allocate((1 + fp.size() + flattened[0].length) * Integer.BYTES
+                + folded.length * Long.BYTES);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(FORMAT_VERSION << 24 | fp.size());
+
+        for(List<Integer> segment : fp)
+            buffer.putInt(segment.size());
+
+        for(long word : folded)
+            buffer.putLong(word);
+
+        for(int bit : flattened[0])
+            buffer.putInt(bit);
+
+        return buffer.array();
+    }
+
+
+    // the features of all segments concatenated, with the offsets of the segment bounds
+    static int[][] flatten(List<List<Integer>> fp)
+    {
+        int[] bounds = new int[fp.size() + 1];
+        int[] values = new int[fp.stream().map(i -> i.size()).reduce(0, Integer::sum)];
+
+        for(int end = 0, i = 0; i < fp.size(); i++)
+        {
+            for(int bit : fp.get(i))
+                values[end++] = bit;
+
+            bounds[i + 1] = end;
+        }
+
+        return new int[][] { values, bounds };
+    }
+
+
+    // the folded bits of the segments of a flattened fingerprint
+    static long[] fold(int[] values, int[] bounds)
+    {
+        long[] folded = new long[(bounds.length - 1) * FOLDED_WORDS];
+
+        for(int i = 0; i < bounds.length - 1; i++)
+        {
+            for(int j = bounds[i]; j < bounds[i + 1]; j++)
+            {
+                int bit = values[j] * 0x9E3779B9 >>> Integer.SIZE - FOLDED_SHIFT;
+                folded[i * FOLDED_WORDS + (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        return folded;
+    }
+
+
+    /*
+     * Returns the size of the intersection of two sorted multisets. The positions are advanced without branching on
+     * the comparison, which is poorly predictable for the hashed features.
+     */
+    static int intersect(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo)
+    {
+        int shared = 0;
+
+        while(aFrom < aTo && bFrom < bTo)
+        {
+            int x = a[aFrom];
+            int y = b[bFrom];
+
+            shared += x == y ? 1 : 0;
+            aFrom += x <= y ? 1 : 0;
+            bFrom += x >= y ? 1 : 0;
+        }
+
+        return shared;
+    }
+
+
+    /*
+     * Returns the minimal and the maximal fingerprint sizes of the blocks of documents for the given radius, as taken
+     * from the indexed size points, or null if the segment has no points. The minimum of the block b is at the index
+     * 2b and the maximum at the index 2b + 1; the minimum exceeds the maximum for the blocks without fingerprints.
+     */
+    static int[] getBlockSizes(LeafReader reader, String field, int radius) throws IOException
+    {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+
+        if(helper == null)
+            return computeBlockSizes(reader, field, radius);
+
+        Map<List<Object>, int[]> fields = cache.get(helper.getKey());
+
+        if(fields == null)
+        {
+            fields = new ConcurrentHashMap<List<Object>, int[]>();
+            Map<List<Object>, int[]> previous = cache.putIfAbsent(helper.getKey(), fields);
+
+            if(previous != null)
+                fields = previous;
+            else
+                helper.addClosedListener(cache::remove);
+        }
+
+        List<Object> key = Arrays.asList(field, radius);
+        int[] sizes = fields.get(key);
+
+        if(sizes == null)
+        {
+            sizes = computeBlockSizes(reader, field, radius);
+
+            if(sizes != null)
+                fields.putIfAbsent(key, sizes);
+        }
+
+        return sizes;
+    }
+
+
+    private static int[] computeBlockSizes(LeafReader reader, String field, int radius) throws IOException
+    {
+        PointValues points = reader.getPointValues(field);
+
+        if(points == null)
+            return null;
+
+        int blocks = (reader.maxDoc() + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        int[] sizes = new int[2 * blocks];
+
+        for(int b = 0; b < blocks; b++)
+            sizes[2 * b] = Integer.MAX_VALUE;
+
+        int low = radius * SimilarStructureQuery.iterationSizeOffset;
+        int high = low + SimilarStructureQuery.iterationSizeOffset - 1;
+
+        points.intersect(new IntersectVisitor()
+        {
+            @Override
+            public void visit(int docID)
+            {
+                throw new IllegalStateException();
+            }
+
+
+            @Override
+            public void visit(int docID, byte[] packedValue)
+            {
+                int value = IntPoint.decodeDimension(packedValue, 0);
+
+                if(value < low || value > high)
+                    return;
+
+                int block = docID >> BLOCK_SHIFT;
+                sizes[2 * block] = Math.min(sizes[2 * block], value - low);
+                sizes[2 * block + 1] = Math.max(sizes[2 * block + 1], value - low);
+            }
+
+
+            @Override
+            public Relation compare(byte[] minPackedValue, byte[] maxPackedValue)
+            {
+                // the values are needed, so the cells are never taken as wholly inside
+                int min = IntPoint.decodeDimension(minPackedValue, 0);
+                int max = IntPoint.decodeDimension(maxPackedValue, 0);
+
+                if(min > high || max < low)
+                    return Relation.CELL_OUTSIDE_QUERY;
+
+                return Relation.CELL_CROSSES_QUERY;
+            }
+        });
+
+        return sizes;
+    }
+
+
+    /*
+     * Decodes the leading segments of the stored fingerprints. The features are decoded into a reused array only when
+     * they are asked for.
+     */
+    static final class Decoder
+    {
+        private final int[] bounds;
+        private int[] values = new int[256];
+        private ByteBuffer buffer;
+        private int foldedOffset;
+        private int valuesOffset;
+        private boolean decoded;
+
+
+        Decoder(int segments)
+        {
+            this.bounds = new int[segments + 1];
+        }
+
+
+        void read(BytesRef data) throws IOException
+        {
+            buffer = ByteBuffer.wrap(data.bytes, data.offset, data.length).slice().order(ByteOrder.LITTLE_ENDIAN);
+
+            int header = buffer.getInt(0);
+            int version = header >>> 24;
+            int segments = header & 0xFFFFFF;
+
+            if(version == LEGACY_VERSION)
+            {
+                readLegacy();
+                return;
+            }
+
+            if(version > FORMAT_VERSION)
+                throw new IOException("unsupported similarity fingerprint format " + version);
+
+            if(segments < bounds.length - 1)
+                throw new IOException("the similarity fingerprint has too few segments");
+
+            for(int i = 1; i < bounds.length; i++)
+                bounds[i] = bounds[i - 1] + buffer.getInt(i * Integer.BYTES);
+
+            int offset = (1 + segments) * Integer.BYTES;
+
+            foldedOffset = version >= FORMAT_VERSION ? offset : -1;
+            valuesOffset = version >= FORMAT_VERSION ? offset + segments * FOLDED_WORDS * Long.BYTES : offset;
+            decoded = false;
+        }
+
+
+        private void readLegacy()
+        {
+            for(int position = 0, i = 1; i < bounds.length; i++)
+            {
+                int size = buffer.getInt(position);
+                values = ArrayUtil.grow(values, bounds[i - 1] + size);
+
+                buffer.position(position + Integer.BYTES);
+                buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, bounds[i - 1], size);
+
+                bounds[i] = bounds[i - 1] + size;
+                position += (size + 1) * Integer.BYTES;
+            }
+
+            foldedOffset = -1;
+            decoded = true;
+        }
+
+
+        boolean hasFoldedBits()
+        {
+            return foldedOffset >= 0;
+        }
+
+
+        /*
+         * Returns the upper bound of the number of the features shared with the given folded fingerprint. Each bit
+         * set in only one of the fingerprints stands for at least one feature that is not shared.
+         */
+        int getMaxShared(long[] folded, int[] queryBounds)
+        {
+            int shared = 0;
+
+            for(int i = 0; i < bounds.length - 1; i++)
+            {
+                int queryOnly = 0;
+                int targetOnly = 0;
+
+                for(int w = 0; w < FOLDED_WORDS; w++)
+                {
+                    long query = folded[i * FOLDED_WORDS + w];
+                    long target = buffer.getLong(foldedOffset + (i * FOLDED_WORDS + w) * Long.BYTES);
+
+                    queryOnly += Long.bitCount(query & ~target);
+                    targetOnly += Long.bitCount(target & ~query);
+                }
+
+                shared += Math.min(queryBounds[i + 1] - queryBounds[i] - queryOnly,
+                        bounds[i + 1] - bounds[i] - targetOnly);
+            }
+
+            return shared;
+        }
+
+
+        int[] getValues()
+        {
+            if(!decoded)
+            {
+                int size = size();
+                values = ArrayUtil.grow(values, size);
+
+                buffer.position(valuesOffset);
+                buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, 0, size);
+                decoded = true;
+            }
+
+            return values;
+        }
+
+
+        // the offset of the first feature of the segment, or the total size for the segment past the last one
+        int getBound(int segment)
+        {
+            return bounds[segment];
+        }
+
+
+        int size()
+        {
+            return bounds[bounds.length - 1];
+        }
+    }
+}
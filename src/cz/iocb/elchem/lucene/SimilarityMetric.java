@@ -0,0 +1,232 @@
+package cz.iocb.elchem.lucene;
+
+
+
+/*
+ * The similarity of the fingerprints. The features of the fingerprints keep their multiplicities, so the sizes are
+ * the counts of all features and the number of shared features sums the smaller multiplicities of each feature.
+ * The computed similarity must not decrease with the number of shared features, as the bounds are computed by the
+ * same function, and for a fixed query size, its maximum over the targets of a given size must not decrease up to
+ * the query size and not increase from it.
+ */
+public interface SimilarityMetric
+{
+    public static final SimilarityMetric TANIMOTO = new Tanimoto();
+    public static final SimilarityMetric DICE = new Dice();
+
+
+    float similarity(int shared, int querySize, int targetSize);
+
+
+    // the upper bound of the similarity to the targets of the given size
+    default float maxSimilarity(int querySize, int targetSize)
+    {
+        return similarity(Math.min(querySize, targetSize), querySize, targetSize);
+    }
+
+
+    // the smallest size of the targets that can reach the threshold
+    int minTargetSize(int querySize, float threshold);
+
+
+    // the largest size of the targets that can reach the threshold
+    int maxTargetSize(int querySize, float threshold);
+
+
+    // the number of the query features that can be missing in the targets that reach the threshold
+    int maxMissingFeatures(int querySize, float threshold);
+
+
+    public static SimilarityMetric tversky(float alpha, float beta)
+    {
+        return new Tversky(alpha, beta);
+    }
+
+
+    /*
+     * The Tanimoto coefficient, the shared features over all features of the fingerprints. As the multiplicities are
+     * kept, it is the count-based variant of the coefficient.
+     */
+    public static final class Tanimoto implements SimilarityMetric
+    {
+        private Tanimoto()
+        {
+        }
+
+
+        @Override
+        public float similarity(int shared, int querySize, int targetSize)
+        {
+            return shared / (float) (querySize + targetSize - shared);
+        }
+
+
+        @Override
+        public int minTargetSize(int querySize, float threshold)
+        {
+            return (int) Math.floor(querySize * threshold);
+        }
+
+
+        @Override
+        public int maxTargetSize(int querySize, float threshold)
+        {
+            return (int) Math.ceil(querySize / threshold);
+        }
+
+
+        @Override
+        public int maxMissingFeatures(int querySize, float threshold)
+        {
+            return (int) Math.ceil(querySize * (1 - threshold));
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return "tanimoto";
+        }
+    }
+
+
+    /*
+     * The Dice coefficient, twice the shared features over the sizes of both fingerprints.
+     */
+    public static final class Dice implements SimilarityMetric
+    {
+        private Dice()
+        {
+        }
+
+
+        @Override
+        public float similarity(int shared, int querySize, int targetSize)
+        {
+            return 2 * shared / (float) (querySize + targetSize);
+        }
+
+
+        @Override
+        public int minTargetSize(int querySize, float threshold)
+        {
+            return (int) Math.floor(querySize * threshold / (2.0 - threshold));
+        }
+
+
+        @Override
+        public int maxTargetSize(int querySize, float threshold)
+        {
+            return (int) Math.ceil(querySize * (2.0 - threshold) / threshold);
+        }
+
+
+        @Override
+        public int maxMissingFeatures(int querySize, float threshold)
+        {
+            return (int) Math.ceil(querySize * 2.0 * (1 - threshold) / (2.0 - threshold));
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return "dice";
+        }
+    }
+
+
+    /*
+     * The Tversky index, the shared features over themselves and the query and target only features weighted by
+     * alpha and beta. It is the Tanimoto coefficient for the unit weights and the Dice coefficient for the halves.
+     */
+    public static final class Tversky implements SimilarityMetric
+    {
+        private final float alpha;
+        private final float beta;
+
+
+        private Tversky(float alpha, float beta)
+        {
+            if(alpha < 0 || beta < 0 || alpha + beta == 0)
+                throw new IllegalArgumentException("wrong tversky weights [" + alpha + ", " + beta + "]");
+
+            this.alpha = alpha;
+            this.beta = beta;
+        }
+
+
+        public float getAlpha()
+        {
+            return alpha;
+        }
+
+
+        public float getBeta()
+        {
+            return beta;
+        }
+
+
+        @Override
+        public float similarity(int shared, int querySize, int targetSize)
+        {
+            // an empty target would give NaN for the zero alpha
+            if(shared == 0)
+                return 0.0f;
+
+            // the double precision keeps the rounded values monotonic
+            return (float) (shared / (shared + (double) alpha * (querySize - shared)
+                    + (double) beta * (targetSize - shared)));
+        }
+
+
+        @Override
+        public int minTargetSize(int querySize, float threshold)
+        {
+            return (int) Math.floor(threshold * alpha * querySize / (1.0 - threshold + threshold * alpha));
+        }
+
+
+        @Override
+        public int maxTargetSize(int querySize, float threshold)
+        {
+            if(beta == 0 || threshold == 0)
+                return Integer.MAX_VALUE;
+
+            return (int) Math.min(Math.ceil(querySize + querySize * (1.0 - threshold) / (threshold * beta)),
+                    Integer.MAX_VALUE);
+        }
+
+
+        @Override
+        public int maxMissingFeatures(int querySize, float threshold)
+        {
+            // no similarity is reached without any shared feature
+            double shared = threshold * alpha * querySize / (1.0 - threshold + threshold * alpha);
+
+            return Math.max(querySize - Math.max((int) Math.floor(shared), 1), 0);
+        }
+
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Tversky && alpha == ((Tversky) other).alpha && beta == ((Tversky) other).beta;
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * Float.hashCode(alpha) + Float.hashCode(beta);
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return "tversky(" + alpha + ", " + beta + ")";
+        }
+    }
+}
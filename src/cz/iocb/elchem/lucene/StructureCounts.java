@@ -0,0 +1,210 @@
+package cz.iocb.elchem.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.DocValuesFieldExistsQuery;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import cz.iocb.elchem.molecule.Molecule;
+import cz.iocb.elchem.molecule.Molecule.AtomType;
+
+
+
+public final class StructureCounts
+{
+    private static final int HEAVY_ATOMS = 0;
+    private static final int HEAVY_BONDS = 1;
+    private static final int CARBONS = 2;
+    private static final int NITROGENS = 3;
+    private static final int OXYGENS = 4;
+    private static final int SULPHURS = 5;
+    private static final int PHOSPHORUS = 6;
+    private static final int HALOGENS = 7;
+
+    public static final int DIMENSIONS = 8;
+
+
+    private StructureCounts()
+    {
+    }
+
+
+    public static String countsField(String field)
+    {
+        return field + ".counts";
+    }
+
+
+    public static IntPoint createField(String field, Molecule molecule)
+    {
+        return new IntPoint(countsField(field), getCounts(molecule, true));
+    }
+
+
+    /*
+     * Only atoms that can be mapped to non-hydrogen atoms of the target are counted for a query, so that the counts
+     * are lower bounds of the counts of any matching target. An R atom may also match a hydrogen.
+     */
+    static int[] getCounts(Molecule molecule, boolean exact)
+    {
+        int[] counts = new int[DIMENSIONS];
+        boolean[] counted = new boolean[molecule.getAtomCount()];
+
+        for(int i = 0; i < molecule.getAtomCount(); i++)
+        {
+            byte number = molecule.getAtomNumber(i);
+
+            if(number == AtomType.H || !exact && number == AtomType.R)
+                continue;
+
+            counted[i] = true;
+            counts[HEAVY_ATOMS]++;
+
+            if(number == AtomType.C)
+                counts[CARBONS]++;
+            else if(number == AtomType.N)
+                counts[NITROGENS]++;
+            else if(number == AtomType.O)
+                counts[OXYGENS]++;
+            else if(number == AtomType.S)
+                counts[SULPHURS]++;
+            else if(number == AtomType.P)
+                counts[PHOSPHORUS]++;
+            else if(molecule.isAtomHalogen(i))
+                counts[HALOGENS]++;
+        }
+
+        for(int i = 0; i < molecule.getBondCount(); i++)
+            if(counted[molecule.getBondAtom(i, 0)] && counted[molecule.getBondAtom(i, 1)])
+                counts[HEAVY_BONDS]++;
+
+        return counts;
+    }
+
+
+    static Query createQuery(String field, Molecule molecule, boolean exact)
+    {
+        int[] counts = getCounts(molecule, exact);
+
+        if(!exact && Arrays.stream(counts).allMatch(c -> c == 0))
+            return null;
+
+        int[] upper = counts;
+
+        if(!exact)
+        {
+            upper = new int[DIMENSIONS];
+            Arrays.fill(upper, Integer.MAX_VALUE);
+        }
+
+        return new CountsQuery(field, IntPoint.newRangeQuery(countsField(field), counts, upper));
+    }
+
+
+    /*
+     * Segments written before the counts were indexed, or merged from such segments, are not restricted.
+     */
+    static boolean isIndexed(LeafReader reader, String field) throws IOException
+    {
+        PointValues points = reader.getPointValues(countsField(field));
+
+        if(points == null)
+            return false;
+
+        Terms terms = reader.terms(field);
+
+        return terms == null || points.getDocCount() >= terms.getDocCount();
+    }
+
+
+    private static class CountsQuery extends Query
+    {
+        private final String field;
+        private final Query rangeQuery;
+
+
+        CountsQuery(String field, Query rangeQuery)
+        {
+            this.field = field;
+            this.rangeQuery = rangeQuery;
+        }
+
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
+        {
+            Weight rangeWeight = rangeQuery.createWeight(searcher, scoreMode, boost);
+            Weight existsWeight = new DocValuesFieldExistsQuery(field).createWeight(searcher, scoreMode, boost);
+
+            return new Weight(this)
+            {
+                @Override
+                public Scorer scorer(LeafReaderContext context) throws IOException
+                {
+                    if(isIndexed(context.reader(), field))
+                        return rangeWeight.scorer(context);
+                    else
+                        return existsWeight.scorer(context);
+                }
+
+
+                @Override
+                public boolean isCacheable(LeafReaderContext context)
+                {
+                    return rangeWeight.isCacheable(context) && existsWeight.isCacheable(context);
+                }
+
+
+                @Override
+                public Explanation explain(LeafReaderContext context, int doc) throws IOException
+                {
+                    Scorer scorer = scorer(context);
+
+                    if(scorer != null && doc == scorer.iterator().advance(doc))
+                        return Explanation.match(boost, "counts match");
+
+                    return Explanation.noMatch("counts do not match");
+                }
+
+
+                @Deprecated
+                @Override
+                public void extractTerms(Set<Term> set)
+                {
+                }
+            };
+        }
+
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return sameClassAs(other) && rangeQuery.equals(((CountsQuery) other).rangeQuery);
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * classHash() + rangeQuery.hashCode();
+        }
+
+
+        @Override
+        public String toString(String field)
+        {
+            return rangeQuery.toString(field);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package cz.iocb.elchem.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import cz.iocb.elchem.molecule.Molecule;
+
+
+
+/*
+ * An isomorphism invariant hash of the heavy atom graph labelled by the atom numbers and the bond types. Any exact
+ * match of a query has the same graph, so it has the same hash; the charges, isotopes, radicals, hydrogens and stereo
+ * are left to the verification, as their comparison depends on the search modes.
+ */
+public final class StructureHash
+{
+    private StructureHash()
+    {
+    }
+
+
+    public static String hashField(String field)
+    {
+        return field + ".hash";
+    }
+
+
+    public static StringField createField(String field, Molecule molecule)
+    {
+        return new StringField(hashField(field), getTerm(molecule), Field.Store.NO);
+    }
+
+
+    static BytesRef getTerm(Molecule molecule)
+    {
+        long hash = getHash(molecule);
+        byte[] bytes = new byte[Long.BYTES];
+
+        for(int i = 0; i < Long.BYTES; i++)
+            bytes[i] = (byte) (hash >>> 8 * (Long.BYTES - 1 - i));
+
+        return new BytesRef(bytes);
+    }
+
+
+    /*
+     * The atom labels are refined by the labels of their neighbours until the partition of the atoms stops to change,
+     * which happens at the same round for isomorphic graphs.
+     */
+    static long getHash(Molecule molecule)
+    {
+        int atomCount = molecule.getAtomCount();
+        long[] labels = new long[atomCount];
+
+        for(int i = 0; i < atomCount; i++)
+            labels[i] = mix(molecule.getAtomNumber(i));
+
+        int classes = countClasses(labels);
+
+        for(int round = 0; round < atomCount; round++)
+        {
+            long[] refined = new long[atomCount];
+
+            for(int i = 0; i < atomCount; i++)
+            {
+                int[] bonded = molecule.getBondedAtoms(i);
+                long[] neighbours = new long[bonded.length];
+
+                for(int j = 0; j < bonded.length; j++)
+                    neighbours[j] = mix(labels[bonded[j]] ^ mix(molecule.getBondType(molecule.getBond(i, bonded[j]))));
+
+                Arrays.sort(neighbours);
+
+                long label = labels[i];
+
+                for(long neighbour : neighbours)
+                    label = mix(label ^ neighbour);
+
+                refined[i] = label;
+            }
+
+            labels = refined;
+
+            int refinedClasses = countClasses(labels);
+
+            if(refinedClasses == classes)
+                break;
+
+            classes = refinedClasses;
+        }
+
+        Arrays.sort(labels);
+
+        long hash = mix(atomCount) ^ mix(molecule.getBondCount() + 0x100000000L);
+
+        for(long label : labels)
+            hash = mix(hash ^ label);
+
+        return hash;
+    }
+
+
+    private static int countClasses(long[] labels)
+    {
+        return (int) Arrays.stream(labels).distinct().count();
+    }
+
+
+    private static long mix(long value)
+    {
+        value += 0x9E3779B97F4A7C15L;
+        value = (value ^ value >>> 30) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ value >>> 27) * 0x94D049BB133111EBL;
+        return value ^ value >>> 31;
+    }
+
+
+    /*
+     * Returns the query selecting the documents of the same hash; the segments not indexed with the hashes are
+     * screened by the given fallback query.
+     */
+    static Query createQuery(String field, Molecule molecule, Query fallback)
+    {
+        return new HashQuery(field, new Term(hashField(field), getTerm(molecule)), fallback);
+    }
+
+
+    static boolean isIndexed(LeafReader reader, String field) throws IOException
+    {
+        Terms hashes = reader.terms(hashField(field));
+
+        if(hashes == null)
+            return false;
+
+        Terms terms = reader.terms(field);
+
+        return terms == null || hashes.getDocCount() >= terms.getDocCount();
+    }
+
+
+    private static class HashQuery extends Query
+    {
+        private final String field;
+        private final Term term;
+        private final Query fallback;
+
+
+        HashQuery(String field, Term term, Query fallback)
+        {
+            this.field = field;
+            this.term = term;
+            this.fallback = fallback;
+        }
+
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
+        {
+            Weight termWeight = new ConstantScoreQuery(new TermQuery(term)).createWeight(searcher, scoreMode, boost);
+            Weight fallbackWeight = fallback.createWeight(searcher, scoreMode, boost);
+
+            return new Weight(this)
+            {
+                @Override
+                public Scorer scorer(LeafReaderContext context) throws IOException
+                {
+                    if(isIndexed(context.reader(), field))
+                        return termWeight.scorer(context);
+                    else
+                        return fallbackWeight.scorer(context);
+                }
+
+
+                @Override
+                public boolean isCacheable(LeafReaderContext context)
+                {
+                    return termWeight.isCacheable(context) && fallbackWeight.isCacheable(context);
+                }
+
+
+                @Override
+                public Explanation explain(LeafReaderContext context, int doc) throws IOException
+                {
+                    Scorer scorer = scorer(context);
+
+                    if(scorer != null && doc == scorer.iterator().advance(doc))
+                        return Explanation.match(boost, "hash match");
+
+                    return Explanation.noMatch("hash does not match");
+                }
+
+
+                @Deprecated
+                @Override
+                public void extractTerms(Set<Term> set)
+                {
+                    termWeight.extractTerms(set);
+                    fallbackWeight.extractTerms(set);
+                }
+            };
+        }
+
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return sameClassAs(other) && term.equals(((HashQuery) other).term)
+                    && fallback.equals(((HashQuery) other).fallback);
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * classHash() + term.hashCode()) + fallback.hashCode();
+        }
+
+
+        @Override
+        public String toString(String field)
+        {
+            return term.field() + ":" + term.bytes().toString();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package cz.iocb.elchem.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import cz.iocb.elchem.molecule.Molecule;
+
+
+
+/*
+ * The sizes of a molecule as used by the native score: the heavy atom, heavy bond, hydrogen atom and hydrogen bond
+ * counts packed into a long by 16 bits.
+ */
+public final class StructureSizes
+{
+    static final int BLOCK_SHIFT = 7;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private static final int[] weights = { 8, 4, 2, 1 };
+
+    private static final Map<IndexReader.CacheKey, Map<String, long[]>> cache =
+            new ConcurrentHashMap<IndexReader.CacheKey, Map<String, long[]>>();
+
+
+    private StructureSizes()
+    {
+    }
+
+
+    public static String sizesField(String field)
+    {
+        return field + ".sizes";
+    }
+
+
+    public static NumericDocValuesField createField(String field, Molecule molecule)
+    {
+        return new NumericDocValuesField(sizesField(field), getSizes(molecule));
+    }
+
+
+    // the molecule must be loaded without hydrogens, so that its atoms and bonds are the heavy ones
+    static long getSizes(Molecule molecule)
+    {
+        int heavyAtoms = molecule.getAtomCount();
+        int heavyBonds = molecule.getBondCount();
+        int hydrogenAtoms = molecule.getOriginalAtomCount() - heavyAtoms;
+        int hydrogenBonds = molecule.getOriginalBondCount() - heavyBonds;
+
+        return (long) heavyAtoms << 48 | (long) heavyBonds << 32 | (long) hydrogenAtoms << 16 | hydrogenBonds;
+    }
+
+
+    private static int size(long sizes, int index)
+    {
+        return (int) (sizes >>> 16 * (3 - index) & 0xFFFF);
+    }
+
+
+    // must give the same value as the native code does for a match
+    static float score(long query, long target)
+    {
+        double[] ratios = new double[4];
+
+        for(int i = 0; i < 4; i++)
+            ratios[i] = size(target, i) != 0 ? size(query, i) / (double) size(target, i) : 1.0;
+
+        return (float) ((8 * ratios[0] + 4 * ratios[1] + 2 * ratios[2] + 1 * ratios[3]) / 15);
+    }
+
+
+    // upper bound of the score of a match on any target that is not smaller than the given minimal sizes
+    static float maxScore(long query, long minimum)
+    {
+        double score = 0;
+
+        for(int i = 0; i < 4; i++)
+        {
+            int q = size(query, i);
+            int t = size(minimum, i);
+
+            if(q == 0)
+                score += weights[i] * (t == 0 ? 1.0 : 0.0);
+            else
+                score += weights[i] * (q / (double) Math.max(t, 1));
+        }
+
+        return Math.nextUp((float) (score / 15));
+    }
+
+
+    // returns the component-wise minimal sizes of the blocks of documents, or null if the segment has no sizes
+    static long[] getBlockMinima(LeafReader reader, String field) throws IOException
+    {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+
+        if(helper == null)
+            return computeBlockMinima(reader, field);
+
+        Map<String, long[]> fields = cache.get(helper.getKey());
+
+        if(fields == null)
+        {
+            fields = new ConcurrentHashMap<String, long[]>();
+            Map<String, long[]> previous = cache.putIfAbsent(helper.getKey(), fields);
+
+            if(previous != null)
+                fields = previous;
+            else
+                helper.addClosedListener(cache::remove);
+        }
+
+        long[] minima = fields.get(field);
+
+        if(minima == null)
+        {
+            minima = computeBlockMinima(reader, field);
+
+            if(minima != null)
+                fields.putIfAbsent(field, minima);
+        }
+
+        return minima;
+    }
+
+
+    private static long[] computeBlockMinima(LeafReader reader, String field) throws IOException
+    {
+        if(reader.getFieldInfos().fieldInfo(sizesField(field)) == null)
+            return null;
+
+        BinaryDocValues structures = DocValues.getBinary(reader, field);
+        NumericDocValues values = DocValues.getNumeric(reader, sizesField(field));
+        int blocks = (reader.maxDoc() + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        int[][] minima = new int[blocks][4];
+
+        for(int[] block : minima)
+            Arrays.fill(block, 0xFFFF);
+
+        for(int doc = structures.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = structures.nextDoc())
+        {
+            int[] block = minima[doc >> BLOCK_SHIFT];
+
+            // documents indexed without sizes are taken as empty
+            long sizes = values.advanceExact(doc) ? values.longValue() : 0;
+
+            for(int i = 0; i < 4; i++)
+                block[i] = Math.min(block[i], size(sizes, i));
+        }
+
+        long[] result = new long[blocks];
+
+        for(int b = 0; b < blocks; b++)
+            for(int i = 0; i < 4; i++)
+                result[b] |= (long) minima[b][i] << 16 * (3 - i);
+
+        return result;
+    }
+}
@@ -0,0 +1,200 @@
+package cz.iocb.elchem.lucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+
+
+
+public class SubstructureMatchCache
+{
+    static class Matches
+    {
+        final int[] docs;
+        final float[] scores;
+        final boolean complete;
+
+
+        // incomplete matches, such as the ones of an exhausted verification budget, are not cached
+        Matches(int[] docs, float[] scores, boolean complete)
+        {
+            this.docs = docs;
+            this.scores = scores;
+            this.complete = complete;
+        }
+
+
+        long weight()
+        {
+            return 64 + (long) docs.length * (Integer.BYTES + Float.BYTES);
+        }
+    }
+
+
+    private static class Key
+    {
+        private final IndexReader.CacheKey core;
+        private final Object query;
+
+
+        Key(IndexReader.CacheKey core, Object query)
+        {
+            this.core = core;
+            this.query = query;
+        }
+
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Key && core == ((Key) other).core && query.equals(((Key) other).query);
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(core, query);
+        }
+    }
+
+
+    private static final Map<Key, Matches> cache = new LinkedHashMap<Key, Matches>(16, 0.75f, true);
+    private static final Set<IndexReader.CacheKey> cores = ConcurrentHashMap.newKeySet();
+
+    private static volatile long maxWeight = 0;
+    private static long weight = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+
+
+    public static synchronized void setMaxSize(long bytes)
+    {
+        maxWeight = bytes;
+        evict();
+    }
+
+
+    public static boolean isEnabled()
+    {
+        return maxWeight > 0;
+    }
+
+
+    public static synchronized long getHits()
+    {
+        return hits;
+    }
+
+
+    public static synchronized long getMisses()
+    {
+        return misses;
+    }
+
+
+    public static synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+
+    public static synchronized int getCount()
+    {
+        return cache.size();
+    }
+
+
+    public static synchronized long getWeight()
+    {
+        return weight;
+    }
+
+
+    // returns the cached matches of the query, or null if they are not cached
+    static Matches get(LeafReader reader, Object query)
+    {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+
+        if(!isEnabled() || helper == null)
+            return null;
+
+        Key key = new Key(helper.getKey(), query);
+
+        synchronized(SubstructureMatchCache.class)
+        {
+            Matches matches = cache.get(key);
+
+            if(matches != null)
+                hits++;
+            else
+                misses++;
+
+            return matches;
+        }
+    }
+
+
+    // the matches must cover all documents of the segment, including the deleted ones
+    static void put(LeafReader reader, Object query, Matches matches)
+    {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+
+        if(!isEnabled() || helper == null)
+            return;
+
+        Key key = new Key(helper.getKey(), query);
+
+        if(cores.add(key.core))
+            helper.addClosedListener(SubstructureMatchCache::invalidate);
+
+        // concurrent misses of the same key may put it twice, the matches are equal
+        synchronized(SubstructureMatchCache.class)
+        {
+            if(matches.complete && matches.weight() <= maxWeight && cores.contains(key.core))
+            {
+                Matches previous = cache.put(key, matches);
+
+                if(previous != null)
+                    weight -= previous.weight();
+
+                weight += matches.weight();
+                evict();
+            }
+        }
+    }
+
+
+    private static void evict()
+    {
+        for(Iterator<Matches> it = cache.values().iterator(); weight > maxWeight && it.hasNext();)
+        {
+            weight -= it.next().weight();
+            it.remove();
+            evictions++;
+        }
+    }
+
+
+    private static synchronized void invalidate(IndexReader.CacheKey core)
+    {
+        cores.remove(core);
+
+        for(Iterator<Map.Entry<Key, Matches>> it = cache.entrySet().iterator(); it.hasNext();)
+        {
+            Map.Entry<Key, Matches> entry = it.next();
+
+            if(entry.getKey().core == core)
+            {
+                weight -= entry.getValue().weight();
+                it.remove();
+            }
+        }
+    }
+}
@@ -1,34 +1,53 @@
 package cz.iocb.elchem.lucene;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.BooleanQuery.Builder;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
 import org.apache.lucene.search.ConstantScoreQuery;
-import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.DisiPriorityQueue;
+import org.apache.lucene.search.DisiWrapper;
+import org.apache.lucene.search.DisjunctionDISIApproximation;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.DocValuesFieldExistsQuery;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorable;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.openscience.cdk.CDKConstants;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtom;
@@ -39,6 +58,7 @@ import cz.iocb.elchem.molecule.BinaryMolecule;
 import cz.iocb.elchem.molecule.BinaryMoleculeBuilder;
 import cz.iocb.elchem.molecule.ChargeMode;
 import cz.iocb.elchem.molecule.IsotopeMode;
+import cz.iocb.elchem.molecule.Molecule.AtomType;
 import cz.iocb.elchem.molecule.MoleculeCreator;
 import cz.iocb.elchem.molecule.MoleculeCreator.QueryMolecule;
 import cz.iocb.elchem.molecule.NativeIsomorphism;
@@ -53,6 +73,117 @@ import cz.iocb.elchem.molecule.TautomerMode;
 
 public class SubstructureQuery extends Query
 {
+    public static class CompiledTautomer
+    {
+        private final byte[] molecule;
+        private final boolean[] restH;
+        private final Map<Integer, Set<Integer>> fingerprint;
+
+        private NativeIsomorphism isomorphism;
+        private List<Object> isomorphismModes;
+
+
+        public CompiledTautomer(byte[] molecule, boolean[] restH, Map<Integer, Set<Integer>> fingerprint)
+        {
+            this.molecule = molecule;
+            this.restH = restH;
+            this.fingerprint = fingerprint;
+        }
+
+
+        public byte[] getMolecule()
+        {
+            return molecule;
+        }
+
+
+        public boolean[] getRestH()
+        {
+            return restH;
+        }
+
+
+        // the query atoms covered by the individual fingerprint bits
+        public Map<Integer, Set<Integer>> getFingerprint()
+        {
+            return fingerprint;
+        }
+
+
+        // the native query is kept with the compiled form, so that cached compiled forms share it
+        synchronized NativeIsomorphism getIsomorphism(SearchMode searchMode, ChargeMode chargeMode,
+                IsotopeMode isotopeMode, RadicalMode radicalMode, StereoMode stereoMode)
+        {
+            List<Object> modes = Arrays.asList(searchMode, chargeMode, isotopeMode, radicalMode, stereoMode);
+
+            if(isomorphism == null || !modes.equals(isomorphismModes))
+            {
+                isomorphism = new NativeIsomorphism(molecule, restH, searchMode, chargeMode, isotopeMode, radicalMode,
+                        stereoMode);
+                isomorphismModes = modes;
+            }
+
+            return isomorphism;
+        }
+    }
+
+
+    /*
+     * The expected number of candidates passing the screening and the expected cost of their verification, in the
+     * number of posting list advances the verification of one candidate is worth.
+     */
+    public static class CostEstimate
+    {
+        private final double candidates;
+        private final double cost;
+
+
+        public CostEstimate(double candidates, double cost)
+        {
+            this.candidates = candidates;
+            this.cost = cost;
+        }
+
+
+        public double getCandidates()
+        {
+            return candidates;
+        }
+
+
+        public double getCost()
+        {
+            return cost;
+        }
+    }
+
+
+    public static class CompiledQuery
+    {
+        private final String name;
+        private final List<CompiledTautomer> tautomers;
+
+
+        public CompiledQuery(String name, List<CompiledTautomer> tautomers)
+        {
+            this.name = name;
+            this.tautomers = tautomers;
+        }
+
+
+        public String getName()
+        {
+            return name;
+        }
+
+
+        public List<CompiledTautomer> getTautomers()
+        {
+            return tautomers;
+        }
+    }
+
+
     private final String field;
     private final String query;
     private final QueryFormat queryFormat;
@@ -64,7 +195,15 @@ public class SubstructureQuery extends Query
     private final AromaticityMode aromaticityMode;
     private final TautomerMode tautomerMode;
     private final long iterationLimit;
-    private final Query subquery;
+    private final int topK;
+    private final long maxCost;
+    private final int sampleSize;
+    private final ScreeningPlanner planner;
+    private final List<Tautomer> tautomers;
+    private final List<Object> matchKey;
+    private final CostEstimate estimate;
+    private final IndexReader.CacheKey estimatedReader;
+    private final List<List<Integer>> estimatedBits;
     final String name;
 
 
@@ -72,6 +211,27 @@ public class SubstructureQuery extends Query
             ChargeMode chargeMode, IsotopeMode isotopeMode, RadicalMode radicalMode, StereoMode stereoMode,
             AromaticityMode aromaticityMode, TautomerMode tautomerMode, long iterationLimit)
             throws CDKException, IOException, TimeoutException
+    {
+        this(field, query, queryFormat, searchMode, chargeMode, isotopeMode, radicalMode, stereoMode, aromaticityMode,
+                tautomerMode, iterationLimit, CostBasedScreeningPlanner.DEFAULT);
+    }
+
+
+    public SubstructureQuery(String field, String query, QueryFormat queryFormat, SearchMode searchMode,
+            ChargeMode chargeMode, IsotopeMode isotopeMode, RadicalMode radicalMode, StereoMode stereoMode,
+            AromaticityMode aromaticityMode, TautomerMode tautomerMode, long iterationLimit, ScreeningPlanner planner)
+            throws CDKException, IOException, TimeoutException
+    {
+        this(field, query, queryFormat, searchMode, chargeMode, isotopeMode, radicalMode, stereoMode, aromaticityMode,
+                tautomerMode, iterationLimit, 0, 0, 0, planner, compile(query, queryFormat, searchMode, chargeMode,
+                        isotopeMode, radicalMode, stereoMode, aromaticityMode, tautomerMode));
+    }
+
+
+    public SubstructureQuery(String field, String query, QueryFormat queryFormat, SearchMode searchMode,
+            ChargeMode chargeMode, IsotopeMode isotopeMode, RadicalMode radicalMode, StereoMode stereoMode,
+            AromaticityMode aromaticityMode, TautomerMode tautomerMode, long iterationLimit, int topK, long maxCost,
+            int sampleSize, ScreeningPlanner planner, CompiledQuery compiled)
     {
         this.field = field;
         this.query = query;
@@ -84,32 +244,286 @@ public class SubstructureQuery extends Query
         this.aromaticityMode = aromaticityMode;
         this.tautomerMode = tautomerMode;
         this.iterationLimit = iterationLimit;
+        this.topK = topK;
+        this.maxCost = maxCost;
+        this.sampleSize = sampleSize;
+        this.planner = planner;
+        this.estimate = null;
+        this.estimatedReader = null;
+        this.estimatedBits = null;
+
+        this.name = compiled.name;
+        this.tautomers = new ArrayList<Tautomer>(compiled.tautomers.size());
+
+        for(CompiledTautomer tautomer : compiled.tautomers)
+            tautomers.add(new Tautomer(tautomer));
+
+        // identifies the verification results independently of the query notation
+        this.matchKey = new ArrayList<Object>(Arrays.asList(field, searchMode, chargeMode, isotopeMode, radicalMode,
+                stereoMode, iterationLimit));
+
+        for(Tautomer tautomer : tautomers)
+            matchKey.add(tautomer.key);
+    }
+
+
+    private SubstructureQuery(SubstructureQuery other, CostEstimate estimate, IndexReader.CacheKey estimatedReader,
+            List<List<Integer>> estimatedBits)
+    {
+        this.field = other.field;
+        this.query = other.query;
+        this.queryFormat = other.queryFormat;
+        this.searchMode = other.searchMode;
+        this.chargeMode = other.chargeMode;
+        this.isotopeMode = other.isotopeMode;
+        this.radicalMode = other.radicalMode;
+        this.stereoMode = other.stereoMode;
+        this.aromaticityMode = other.aromaticityMode;
+        this.tautomerMode = other.tautomerMode;
+        this.iterationLimit = other.iterationLimit;
+        this.topK = other.topK;
+        this.maxCost = other.maxCost;
+        this.sampleSize = other.sampleSize;
+        this.planner = other.planner;
+        this.name = other.name;
+        this.tautomers = other.tautomers;
+        this.matchKey = other.matchKey;
+        this.estimate = estimate;
+        this.estimatedReader = estimatedReader;
+        this.estimatedBits = estimatedBits;
+    }
 
+
+    public static CompiledQuery compile(String query, QueryFormat queryFormat, SearchMode searchMode,
+            ChargeMode chargeMode, IsotopeMode isotopeMode, RadicalMode radicalMode, StereoMode stereoMode,
+            AromaticityMode aromaticityMode, TautomerMode tautomerMode)
+            throws CDKException, IOException, TimeoutException
+    {
         QueryMolecule queryMolecules = MoleculeCreator.translateQuery(query, queryFormat, chargeMode, isotopeMode,
                 radicalMode, stereoMode, aromaticityMode, tautomerMode);
 
-        this.name = queryMolecules.name;
+        List<CompiledTautomer> tautomers = new ArrayList<CompiledTautomer>(queryMolecules.tautomers.size());
+
+        for(IAtomContainer tautomer : queryMolecules.tautomers)
+        {
+            byte[] moleculeData = BinaryMoleculeBuilder.asBytes(tautomer, searchMode == SearchMode.EXACT);
+
+            boolean[] restH = null;
+            boolean hasRestH = false;
+
+            for(IAtom a : tautomer.atoms())
+                if(Boolean.TRUE.equals(a.getProperty(CDKConstants.REST_H)))
+                    hasRestH = true;
+
+            if(hasRestH)
+            {
+                int restHSize = tautomer.getAtomCount();
+
+                if(searchMode == SearchMode.EXACT)
+                    for(IAtom a : tautomer.atoms())
+                        if(a.getImplicitHydrogenCount() != null)
+                            restHSize += a.getImplicitHydrogenCount();
+
+                restH = new boolean[restHSize];
+
+                for(int i = 0; i < tautomer.getAtomCount(); i++)
+                    restH[i] = Boolean.TRUE.equals(tautomer.getAtom(i).getProperty(CDKConstants.REST_H));
+            }
 
-        ArrayList<Query> subqueries = new ArrayList<Query>(queryMolecules.tautomers.size());
+            Map<Integer, Set<Integer>> info = new HashMap<Integer, Set<Integer>>();
+            IOCBFingerprint.getSubstructureFingerprint(new BinaryMolecule(moleculeData), info);
 
-        for(IAtomContainer molecule : queryMolecules.tautomers)
-            subqueries.add(new SingleSubstructureQuery(molecule));
+            tautomers.add(new CompiledTautomer(moleculeData, restH, info));
+        }
 
-        this.subquery = new DisjunctionMaxQuery(subqueries, 0);
+        return new CompiledQuery(queryMolecules.name, tautomers);
     }
 
 
+    /*
+     * The rewritten query carries the cost estimate for the given reader, which its string form reports, as does the
+     * validation of the query with the rewrite and explain flags. With a cost limit, the query is refused if the
+     * estimate exceeds it, so that a single overly broad query cannot occupy the search threads of the nodes. The
+     * screening bits selected for the estimate are reused by the weight, so the estimate costs no extra pass over the
+     * screening terms.
+     */
     @Override
-    public Query rewrite(IndexReader reader)
+    public Query rewrite(IndexReader reader) throws IOException
+    {
+        if(estimate != null)
+            return this;
+
+        List<List<Integer>> bits = selectFingerprintBits(reader);
+        CostEstimate estimate = estimateCost(reader, bits);
+
+        if(maxCost > 0 && estimate.cost > maxCost)
+            throw new IllegalArgumentException(String.format(Locale.ROOT,
+                    "the estimated cost [%.0f] of the substructure query exceeds the limit [%d]", estimate.cost,
+                    maxCost));
+
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+
+        return new SubstructureQuery(this, estimate, helper != null ? helper.getKey() : null, bits);
+    }
+
+
+    // the screening bits of the individual tautomers, as selected by the rewrite if it was done for the reader
+    private List<List<Integer>> selectFingerprintBits(IndexReader reader) throws IOException
+    {
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+
+        if(estimatedBits != null && helper != null && helper.getKey() == estimatedReader)
+            return estimatedBits;
+
+        List<List<Integer>> bits = new ArrayList<List<Integer>>(tautomers.size());
+
+        for(Tautomer tautomer : tautomers)
+            bits.add(tautomer.selectFingerprintBits(reader));
+
+        return bits;
+    }
+
+
+    public CostEstimate estimateCost(IndexReader reader) throws IOException
+    {
+        return estimateCost(reader, selectFingerprintBits(reader));
+    }
+
+
+    private CostEstimate estimateCost(IndexReader reader, List<List<Integer>> selected) throws IOException
+    {
+        double candidates = 0;
+        double cost = 0;
+
+        for(int i = 0; i < tautomers.size(); i++)
+        {
+            Tautomer tautomer = tautomers.get(i);
+            List<Integer> bits = selected.get(i);
+            double count = tautomer.estimateCandidates(reader, bits);
+
+            candidates += count;
+
+            // an advance per candidate if the screening decides the match
+            if(tautomers.size() == 1 && tautomer.isDecidedBy(bits))
+                cost += count;
+            else if(sampleSize > 0)
+                cost += count + Math.min(count, (double) sampleSize * reader.leaves().size()) * tautomer.matchCost;
+            else
+                cost += count * tautomer.matchCost;
+        }
+
+        return new CostEstimate(candidates, cost);
+    }
+
+
+    // the estimate of the rewritten query, null before the rewrite
+    public CostEstimate getCostEstimate()
+    {
+        return estimate;
+    }
+
+
+    /*
+     * Counts the live matching documents without scoring and collecting them. The segments are verified in parallel
+     * by the executor of the searcher, if it has any, and the counting stops as soon as the cap is reached; the
+     * result is then the cap. A cap of zero or less means no cap.
+     */
+    public long count(IndexSearcher searcher, long cap) throws IOException
     {
-        return subquery;
+        long limit = cap > 0 ? cap : Long.MAX_VALUE;
+        SubstructureQuery rewritten = (SubstructureQuery) searcher.rewrite(this);
+        SubstructureWeight weight = rewritten.new SubstructureWeight(searcher, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+
+        AtomicLong count = new AtomicLong();
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+
+        for(LeafReaderContext context : searcher.getIndexReader().leaves())
+        {
+            tasks.add(new FutureTask<Void>(() -> {
+                if(count.get() >= limit)
+                    return null;
+
+                // a count stopped by the cap leaves the match cache as it is, only complete segments are cached
+                BulkScorer scorer = weight.bulkScorer(context);
+
+                if(scorer == null)
+                    return null;
+
+                LeafCollector collector = new LeafCollector()
+                {
+                    @Override
+                    public void setScorer(Scorable scorer)
+                    {
+                    }
+
+
+                    @Override
+                    public void collect(int doc)
+                    {
+                        if(count.incrementAndGet() >= limit)
+                            throw new CollectionTerminatedException();
+                    }
+                };
+
+                try
+                {
+                    scorer.score(collector, context.reader().getLiveDocs());
+                }
+                catch(CollectionTerminatedException e)
+                {
+                }
+
+                return null;
+            }));
+        }
+
+        Executor executor = searcher.getExecutor();
+
+        for(FutureTask<Void> task : tasks)
+        {
+            if(executor != null && tasks.size() > 1)
+            {
+                try
+                {
+                    executor.execute(task);
+                }
+                catch(RejectedExecutionException e)
+                {
+                    task.run();
+                }
+            }
+            else
+            {
+                task.run();
+            }
+        }
+
+        try
+        {
+            for(FutureTask<Void> task : tasks)
+                task.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ThreadInterruptedException(e);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new RuntimeException(e.getCause());
+        }
+
+        return Math.min(count.get(), limit);
     }
 
 
     @Override
     public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
     {
-        return subquery.createWeight(searcher, scoreMode, boost);
+        return new SubstructureWeight(searcher, scoreMode, boost);
     }
 
 
@@ -126,7 +540,8 @@ public class SubstructureQuery extends Query
                 && searchMode.equals(other.searchMode) && chargeMode.equals(other.chargeMode)
                 && isotopeMode.equals(other.isotopeMode) && radicalMode.equals(other.radicalMode)
                 && stereoMode.equals(other.stereoMode) && aromaticityMode.equals(other.aromaticityMode)
-                && tautomerMode.equals(other.tautomerMode) && iterationLimit == other.iterationLimit;
+                && tautomerMode.equals(other.tautomerMode) && iterationLimit == other.iterationLimit
+                && topK == other.topK && maxCost == other.maxCost && sampleSize == other.sampleSize;
     }
 
 
@@ -143,6 +558,9 @@ public class SubstructureQuery extends Query
         result = 3 * result + stereoMode.hashCode();
         result = 3 * result + aromaticityMode.hashCode();
         result = 3 * result + tautomerMode.hashCode();
+        result = 3 * result + topK;
+        result = 31 * result + Long.hashCode(maxCost);
+        result = 31 * result + sampleSize;
         return result;
     }
 
@@ -150,320 +568,1263 @@ public class SubstructureQuery extends Query
     @Override
     public String toString(String field)
     {
-        //TODO:
-        return "SubstructureSearchQuery(...)";
+        StringBuilder builder = new StringBuilder();
+        builder.append("SubstructureQuery(");
+
+        if(!this.field.equals(field))
+            builder.append(this.field).append(":");
+
+        builder.append(query).append(", ").append(searchMode.name().toLowerCase(Locale.ROOT));
+
+        if(sampleSize > 0)
+            builder.append(", sample_size=").append(sampleSize);
+
+        if(estimate != null)
+            builder.append(String.format(Locale.ROOT, ", estimated_candidates=%.0f, estimated_cost=%.0f",
+                    estimate.candidates, estimate.cost));
+
+        return builder.append(")").toString();
     }
 
 
-    class SingleSubstructureQuery extends Query
+    private class Tautomer
     {
-        private final Query parentQuery;
-        private final IAtomContainer tautomer;
-
         private final Set<Integer> fp;
         private final Map<Integer, Set<Integer>> info;
         private final BinaryMolecule molecule;
-        private final byte[] moleculeData;
-        private final boolean[] restH;
+        private final long sizes;
+        private final NativeIsomorphism isomorphism;
+        private final List<Object> key;
+        private final Integer decisiveBit;
+        private final float matchCost;
 
 
-        SingleSubstructureQuery(IAtomContainer tautomer) throws CDKException, IOException
+        Tautomer(CompiledTautomer tautomer)
         {
-            this.parentQuery = SubstructureQuery.this;
-            this.tautomer = tautomer;
+            BitSet restHBits = new BitSet();
 
-            this.moleculeData = BinaryMoleculeBuilder.asBytes(tautomer, searchMode == SearchMode.EXACT);
+            for(int i = 0; tautomer.restH != null && i < tautomer.restH.length; i++)
+                restHBits.set(i, tautomer.restH[i]);
 
-            boolean hasRestH = false;
+            this.key = Arrays.asList(ByteBuffer.wrap(tautomer.molecule), restHBits);
+            this.molecule = new BinaryMolecule(tautomer.molecule);
+            this.sizes = StructureSizes.getSizes(molecule);
+            this.isomorphism = tautomer.getIsomorphism(searchMode, chargeMode, isotopeMode, radicalMode, stereoMode);
+            this.info = tautomer.fingerprint;
+            this.fp = tautomer.fingerprint.keySet();
+            this.decisiveBit = getDecisiveBit(tautomer);
 
-            for(IAtom a : tautomer.atoms())
-                if(Boolean.TRUE.equals(a.getProperty(CDKConstants.REST_H)))
-                    hasRestH = true;
+            // rough number of operations needed to load a target and to map the query atoms on it
+            this.matchCost = 1000 + 100 * molecule.getAtomCount();
+        }
 
-            if(hasRestH)
-            {
-                int restHSize = tautomer.getAtomCount();
 
-                if(searchMode == SearchMode.EXACT)
-                    for(IAtom a : tautomer.atoms())
-                        if(a.getImplicitHydrogenCount() != null)
-                            restHSize += a.getImplicitHydrogenCount();
+        /*
+         * A query that is a single heavy atom without any charge, isotope, radical or hydrogen constraint matches
+         * exactly the targets that contain its element, so its only fingerprint bit, the atom one, decides the match.
+         */
+        private Integer getDecisiveBit(CompiledTautomer tautomer)
+        {
+            if(searchMode != SearchMode.SUBSTRUCTURE || tautomer.restH != null || fp.size() != 1)
+                return null;
 
-                this.restH = new boolean[restHSize];
+            BinaryMolecule atom = new BinaryMolecule(tautomer.molecule, null, false, chargeMode != ChargeMode.IGNORE,
+                    isotopeMode != IsotopeMode.IGNORE, radicalMode != RadicalMode.IGNORE, false, true, false, false,
+                    false);
 
-                for(int i = 0; i < tautomer.getAtomCount(); i++)
-                    this.restH[i] = Boolean.TRUE.equals(tautomer.getAtom(i).getProperty(CDKConstants.REST_H));
-            }
-            else
-            {
-                this.restH = null;
-            }
+            if(atom.getOriginalAtomCount() != 1 || atom.getAtomCount() != 1 || atom.getAtomNumber(0) <= AtomType.H
+                    || atom.isAtomPseudo(0) || atom.getAtomHydrogenCount(0) != 0)
+                return null;
 
-            this.molecule = new BinaryMolecule(moleculeData);
-            this.info = new HashMap<Integer, Set<Integer>>();
-            this.fp = IOCBFingerprint.getSubstructureFingerprint(molecule, info);
-        }
+            if(atom.getSGroups() != null && atom.getSGroups().length > 0)
+                return null;
 
+            if(chargeMode != ChargeMode.IGNORE
+                    && (atom.getAtomFormalCharge(0) != 0 || chargeMode == ChargeMode.DEFAULT_AS_UNCHARGED))
+                return null;
 
-        @Override
-        public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
-        {
-            return new SingleSubstructureWeight(searcher, scoreMode, boost);
-        }
+            if(isotopeMode != IsotopeMode.IGNORE
+                    && (atom.getAtomMass(0) != 0 || isotopeMode == IsotopeMode.DEFAULT_AS_STANDARD))
+                return null;
 
+            if(radicalMode != RadicalMode.IGNORE
+                    && (atom.getAtomRadicalType(0) != 0 || radicalMode == RadicalMode.DEFAULT_AS_STANDARD))
+                return null;
 
-        @Override
-        public boolean equals(Object other)
-        {
-            return sameClassAs(other) && equalsTo(getClass().cast(other));
+            return fp.iterator().next();
         }
 
 
-        private boolean equalsTo(SingleSubstructureQuery other)
+        // whether the screening by the selected bits already gives exactly the matching targets
+        boolean isDecidedBy(List<Integer> bits)
         {
-            return parentQuery.equals(other.parentQuery) && tautomer.equals(other.tautomer);
+            return decisiveBit != null && bits.contains(decisiveBit);
         }
 
 
-        @Override
-        public int hashCode()
+        Weight createScreeningWeight(IndexSearcher searcher, List<Integer> bits, float boost) throws IOException
         {
-            int result = classHash();
-            result = 31 * result + parentQuery.hashCode();
-            result = 31 * result + tautomer.hashCode();
-            return result;
-        }
+            Query countsQuery = StructureCounts.createQuery(field, molecule, searchMode == SearchMode.EXACT);
 
+            if(bits.isEmpty() && countsQuery == null)
+                return new DocValuesFieldExistsQuery(field).createWeight(searcher, ScoreMode.COMPLETE_NO_SCORES, boost);
 
-        @Override
-        public String toString(String field)
-        {
-            //TODO:
-            return "SubstructureSearchQuery.SingleSubstructureQuery(...)";
-        }
+            Builder builder = new BooleanQuery.Builder();
+            FingerprintBitMapping mapping = new FingerprintBitMapping();
 
+            for(int bit : bits)
+                builder.add(new TermQuery(new Term(field, mapping.bitAsString(bit))), BooleanClause.Occur.MUST);
 
-        class SingleSubstructureWeight extends Weight
-        {
-            private final Weight innerWeight;
+            if(countsQuery != null)
+                builder.add(countsQuery, BooleanClause.Occur.FILTER);
 
+            Query screening = new ConstantScoreQuery(builder.build());
 
-            public SingleSubstructureWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
-            {
-                super(SubstructureQuery.this);
+            // an exact match has the same hash, so the fingerprint is needed only for segments without the hashes
+            if(searchMode == SearchMode.EXACT)
+                screening = StructureHash.createQuery(field, molecule, screening);
 
-                if(!fp.isEmpty())
-                {
-                    Builder builder = new BooleanQuery.Builder();
-                    FingerprintBitMapping mapping = new FingerprintBitMapping();
+            return screening.createWeight(searcher, ScoreMode.COMPLETE_NO_SCORES, boost);
+        }
 
-                    for(int bit : selectFingerprintBits(searcher))
-                        builder.add(new TermQuery(new Term(field, mapping.bitAsString(bit))), BooleanClause.Occur.MUST);
 
-                    this.innerWeight = new ConstantScoreQuery(builder.build()).createWeight(searcher,
-                            ScoreMode.COMPLETE_NO_SCORES, boost);
-                }
-                else
-                {
-                    this.innerWeight = new DocValuesFieldExistsQuery(field).createWeight(searcher,
-                            ScoreMode.COMPLETE_NO_SCORES, boost);
-                }
-            }
+        // the same model of the screening as the one the bits were selected by
+        double estimateCandidates(IndexReader reader, List<Integer> bits) throws IOException
+        {
+            if(searchMode == SearchMode.EXACT && reader.getDocCount(StructureHash.hashField(field)) > 0)
+                return reader.docFreq(new Term(StructureHash.hashField(field), StructureHash.getTerm(molecule)));
 
+            FingerprintTermStatistics statistics = FingerprintTermStatistics.get(reader, field);
+            int[] docFreqs = new int[bits.size()];
 
-            @Override
-            public Scorer scorer(LeafReaderContext context) throws IOException
-            {
-                Scorer scorer = innerWeight.scorer(context);
+            for(int i = 0; i < docFreqs.length; i++)
+                docFreqs[i] = statistics.docFreq(bits.get(i));
 
-                if(scorer == null)
-                    return null;
+            return planner.estimate(statistics.getDocCount(), docFreqs);
+        }
 
-                return new SingleSubstructureScorer(context, scorer);
-            }
 
+        List<Integer> selectFingerprintBits(IndexReader reader) throws IOException
+        {
+            if(fp.isEmpty())
+                return new ArrayList<Integer>(0);
 
-            @Override
-            public boolean isCacheable(LeafReaderContext context)
-            {
-                return false;
-            }
+            FingerprintTermStatistics statistics = FingerprintTermStatistics.get(reader, field);
 
+            int[] bits = new int[fp.size()];
+            int[] docFreqs = new int[fp.size()];
+            int[][] bitAtoms = new int[fp.size()][];
+            int position = 0;
 
-            @Override
-            public Explanation explain(LeafReaderContext context, int doc) throws IOException
+            for(int bit : fp)
             {
-                Scorer scorer = scorer(context);
-
-                if(scorer != null && doc != scorer.iterator().advance(doc))
-                    return Explanation.match(scorer.score(), "match");
-
-                return Explanation.noMatch("no match");
+                bits[position] = bit;
+                docFreqs[position] = statistics.docFreq(bit);
+                bitAtoms[position] = info.get(bit).stream().mapToInt(Integer::intValue).toArray();
+                position++;
             }
 
+            int[] plan = planner.plan(statistics.getDocCount(), docFreqs, bitAtoms, molecule.getAtomCount());
+            List<Integer> selected = new ArrayList<Integer>(plan.length);
 
-            @Deprecated
-            @Override
-            public void extractTerms(Set<Term> set)
-            {
-                innerWeight.extractTerms(set);
-            }
+            for(int i : plan)
+                selected.add(bits[i]);
 
+            return selected;
+        }
+    }
 
-            private List<Integer> selectFingerprintBits(IndexSearcher searcher) throws IOException
-            {
-                final int maxSize = 32;
-                final int atomCoverage = 2;
 
-                Map<Integer, Integer> ordered = new TreeMap<Integer, Integer>();
-                FingerprintBitMapping mapping = new FingerprintBitMapping();
+    private static class TautomerWrapper extends DisiWrapper
+    {
+        private final NativeIsomorphism.Matcher matcher;
+        private final long sizes;
+        private final float matchCost;
 
-                for(int i : fp)
-                    ordered.put(searcher.getIndexReader().docFreq(new Term(field, mapping.bitAsString(i))), i);
 
-                List<Integer> selected = new ArrayList<Integer>(maxSize);
-                int[] coverage = new int[molecule.getAtomCount()];
-                int uncovered = molecule.getAtomCount();
+        TautomerWrapper(Scorer scorer, Tautomer tautomer, VerificationBudget budget)
+        {
+            super(scorer);
+            this.matcher = tautomer.isomorphism.matcher();
+            this.sizes = tautomer.sizes;
+            this.matchCost = tautomer.matchCost;
 
-                for(Integer i : ordered.values())
-                {
-                    if(uncovered <= 0 || selected.size() >= maxSize)
-                        break;
+            if(budget != null)
+                matcher.setCancelFlag(budget.getCancelFlag());
+        }
 
-                    boolean found = false;
 
-                    for(int a : info.get(i))
-                    {
-                        if(coverage[a] < atomCoverage)
+        boolean isCandidate(int doc) throws IOException
+        {
+            return approximation.docID() == doc && (twoPhaseView == null || twoPhaseView.matches());
+        }
+    }
+
+
+    class SubstructureWeight extends Weight
+    {
+        private final ScoreMode scoreMode;
+        private final VerificationBudget budget;
+        private final SampledHitCount.Sample hitCount;
+        private final Weight[] screeningWeights;
+        private final boolean verificationFree;
+        private final boolean sampling;
+
+
+        public SubstructureWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException
+        {
+            super(SubstructureQuery.this);
+
+            this.scoreMode = scoreMode;
+            this.budget = VerificationBudget.current();
+
+            SampledHitCount count = SampledHitCount.current();
+            this.hitCount = count != null ? count.getSample(SubstructureQuery.this) : null;
+
+            this.screeningWeights = new Weight[tautomers.size()];
+            boolean decided = tautomers.size() == 1;
+
+            List<List<Integer>> selected = selectFingerprintBits(searcher.getIndexReader());
+
+            for(int i = 0; i < screeningWeights.length; i++)
+            {
+                List<Integer> bits = selected.get(i);
+                screeningWeights[i] = tautomers.get(i).createScreeningWeight(searcher, bits, boost);
+                decided &= tautomers.get(i).isDecidedBy(bits);
+            }
+
+            this.verificationFree = decided;
+
+            // the matches of a query decided by the screening are counted exactly
+            this.sampling = sampleSize > 0 && !verificationFree;
+        }
+
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException
+        {
+            SubstructureMatchCache.Matches matches = getCachedMatches(context);
+
+            if(matches == null)
+                return createScorer(context);
+
+            if(matches.docs.length == 0)
+                return null;
+
+            return new CachedMatchScorer(matches);
+        }
+
+
+        private SubstructureMatchCache.Matches getCachedMatches(LeafReaderContext context)
+        {
+            // there is nothing worth caching if the candidates need no verification, and the samples are partial
+            if(!SubstructureMatchCache.isEnabled() || verificationFree || sampling)
+                return null;
+
+            return SubstructureMatchCache.get(context.reader(), matchKey);
+        }
+
+
+        private SubstructureScorer createScorer(LeafReaderContext context) throws IOException
+        {
+            List<TautomerWrapper> wrappers = new ArrayList<TautomerWrapper>(screeningWeights.length);
+
+            for(int i = 0; i < screeningWeights.length; i++)
+            {
+                Scorer scorer = screeningWeights[i].scorer(context);
+
+                if(scorer != null)
+                    wrappers.add(new TautomerWrapper(scorer, tautomers.get(i), budget));
+            }
+
+            if(wrappers.isEmpty())
+                return null;
+
+            return new SubstructureScorer(context, wrappers.toArray(new TautomerWrapper[0]));
+        }
+
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException
+        {
+            SubstructureMatchCache.Matches matches = getCachedMatches(context);
+
+            if(matches != null)
+                return matches.docs.length != 0 ? new DefaultBulkScorer(new CachedMatchScorer(matches)) : null;
+
+            BulkScorer bulkScorer = bulkScorer(createScorer(context));
+
+            /*
+             * The matches are cached only as a by-product of a pass that verifies all candidates anyway. The passes
+             * of the scorers, of the pruned collection and of the terminated collection are left as they are.
+             */
+            if(SubstructureMatchCache.isEnabled() && !verificationFree && !sampling && bulkScorer != null
+                    && scoreMode != ScoreMode.TOP_SCORES)
+                return new CachingBulkScorer(context, bulkScorer);
+
+            return bulkScorer;
+        }
+
+
+        private BulkScorer bulkScorer(Scorer scorer) throws IOException
+        {
+            if(scorer == null)
+                return null;
+
+            if(!(scorer instanceof SubstructureScorer))
+                return new DefaultBulkScorer(scorer);
+
+            // the candidates are scored by their indexed sizes one by one, so there is nothing to batch or to rank
+            if(((SubstructureScorer) scorer).isVerificationFree())
+                return new DefaultBulkScorer(scorer);
+
+            // the sampled candidates are sparse, so they are verified one by one too
+            if(sampling)
+                return new DefaultBulkScorer(scorer);
+
+            // only a top level query can restrict the hits to the best ones
+            if(topK > 0 && scoreMode == ScoreMode.TOP_SCORES)
+                return new RankedBulkScorer((SubstructureScorer) scorer, topK);
+
+            // verifies the candidates in native batches rather than one by one as the two-phase iterator does
+            return new SubstructureBulkScorer((SubstructureScorer) scorer);
+        }
+
+
+        @Override
+        public boolean isCacheable(LeafReaderContext context)
+        {
+            return false;
+        }
+
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException
+        {
+            Scorer scorer = scorer(context);
+
+            if(scorer != null && doc == scorer.iterator().advance(doc))
+                return Explanation.match(scorer.score(), "match");
+
+            return Explanation.noMatch("no match");
+        }
+
+
+        @Deprecated
+        @Override
+        public void extractTerms(Set<Term> set)
+        {
+            for(Weight weight : screeningWeights)
+                weight.extractTerms(set);
+        }
+
+        /*
+         * Records the matches of all documents, including the deleted ones, and passes the accepted ones on. The
+         * matches are cached once the whole segment is scored in the order of the documents without being cut short.
+         */
+        class CachingBulkScorer extends BulkScorer
+        {
+            private final LeafReaderContext context;
+            private final BulkScorer in;
+            private int[] docs = new int[16];
+            private float[] scores = new float[16];
+            private int count = 0;
+            private int upTo = 0;
+
+
+            CachingBulkScorer(LeafReaderContext context, BulkScorer in)
+            {
+                this.context = context;
+                this.in = in;
+            }
+
+
+            @Override
+            public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException
+            {
+                // the skipped ranges make the matches incomplete
+                if(min > upTo)
+                    upTo = -1;
+
+                int next = in.score(new LeafCollector()
+                {
+                    private Scorable scorer;
+
+
+                    @Override
+                    public void setScorer(Scorable scorer) throws IOException
+                    {
+                        this.scorer = scorer;
+                        collector.setScorer(scorer);
+                    }
+
+
+                    @Override
+                    public void collect(int doc) throws IOException
+                    {
+                        if(upTo >= 0)
                         {
-                            found = true;
-                            coverage[a]++;
+                            if(count == docs.length)
+                            {
+                                docs = ArrayUtil.grow(docs);
+                                scores = ArrayUtil.growExact(scores, docs.length);
+                            }
 
-                            if(coverage[a] == atomCoverage)
-                                uncovered--;
+                            docs[count] = doc;
+                            scores[count++] = scorer.score();
                         }
+
+                        if(acceptDocs == null || acceptDocs.get(doc))
+                            collector.collect(doc);
                     }
+                }, null, min, max);
+
+                // there is no match up to the returned document
+                if(upTo >= 0)
+                    upTo = next;
 
-                    if(found)
-                        selected.add(i);
+                if(upTo == DocIdSetIterator.NO_MORE_DOCS)
+                {
+                    SubstructureMatchCache.put(context.reader(), matchKey, new SubstructureMatchCache.Matches(
+                            Arrays.copyOf(docs, count), Arrays.copyOf(scores, count),
+                            budget == null || !budget.isExhausted()));
+                    upTo = -1;
                 }
 
-                return selected;
+                return next;
             }
 
 
-            class SingleSubstructureScorer extends Scorer
+            @Override
+            public long cost()
+            {
+                return in.cost();
+            }
+        }
+
+
+        class CachedMatchScorer extends Scorer
+        {
+            private final int[] docs;
+            private final float[] scores;
+            private int position = -1;
+
+
+            protected CachedMatchScorer(SubstructureMatchCache.Matches matches)
             {
-                private int docID = -1;
-                private float score = 0;
-                private final Scorer innerScorer;
-                private final BinaryDocValues molDocValue;
-                private final NativeIsomorphism isomorphism;
+                super(SubstructureWeight.this);
+                this.docs = matches.docs;
+                this.scores = matches.scores;
+            }
 
 
-                protected SingleSubstructureScorer(LeafReaderContext context, Scorer scorer) throws IOException
+            @Override
+            public int docID()
+            {
+                if(position < 0)
+                    return -1;
+
+                return position < docs.length ? docs[position] : DocIdSetIterator.NO_MORE_DOCS;
+            }
+
+
+            @Override
+            public float getMaxScore(int upTo) throws IOException
+            {
+                return 1.0f;
+            }
+
+
+            @Override
+            public float score() throws IOException
+            {
+                return scores[position];
+            }
+
+
+            @Override
+            public DocIdSetIterator iterator()
+            {
+                return new DocIdSetIterator()
+                {
+                    @Override
+                    public int nextDoc()
+                    {
+                        if(position < docs.length)
+                            position++;
+
+                        return docID();
+                    }
+
+
+                    @Override
+                    public int advance(int target)
+                    {
+                        int index = Arrays.binarySearch(docs, Math.min(position + 1, docs.length), docs.length, target);
+                        position = index >= 0 ? index : -index - 1;
+
+                        return docID();
+                    }
+
+
+                    @Override
+                    public int docID()
+                    {
+                        return CachedMatchScorer.this.docID();
+                    }
+
+
+                    @Override
+                    public long cost()
+                    {
+                        return docs.length;
+                    }
+                };
+            }
+        }
+
+
+        class SubstructureScorer extends Scorer
+        {
+            private float score = 0;
+            private float minCompetitiveScore = 0;
+            private final LeafReaderContext context;
+            private final TautomerWrapper[] wrappers;
+            private final DocIdSetIterator approximation;
+            private final BinaryDocValues molDocValue;
+            private final NumericDocValues sizesDocValue;
+            private final TwoPhaseIterator twoPhaseIterator;
+            private final double sampleRate;
+            private float[] blockBounds;
+            private int unpolled = 0;
+            private boolean exhausted = false;
+
+
+            protected SubstructureScorer(LeafReaderContext context, TautomerWrapper[] wrappers) throws IOException
+            {
+                super(SubstructureWeight.this);
+                this.context = context;
+                this.wrappers = wrappers;
+                this.molDocValue = DocValues.getBinary(context.reader(), field);
+                // the sizes serve just the scores and their bounds
+                this.sizesDocValue = scoreMode.needsScores() ?
+                        context.reader().getNumericDocValues(StructureSizes.sizesField(field)) : null;
+
+                DisiPriorityQueue queue = new DisiPriorityQueue(wrappers.length);
+                float matchCost = 0;
+
+                for(TautomerWrapper wrapper : wrappers)
+                {
+                    queue.add(wrapper);
+                    matchCost += wrapper.matchCost;
+                }
+
+                DocIdSetIterator candidates = wrappers.length == 1 ? wrappers[0].approximation :
+                        new DisjunctionDISIApproximation(queue);
+
+                this.approximation = sizesDocValue == null ? candidates : new BlockBoundIterator(candidates);
+
+                // the sample has the requested size if the screening estimates the number of candidates well
+                this.sampleRate = sampling ? Math.min(1.0, sampleSize / (double) Math.max(candidates.cost(), 1)) : 1.0;
+
+                float totalMatchCost = matchCost;
+
+                this.twoPhaseIterator = new TwoPhaseIterator(approximation)
+                {
+                    @Override
+                    public boolean matches() throws IOException
+                    {
+                        int doc = approximation.docID();
+
+                        if(isExhausted(1) || !isCompetitive(doc))
+                            return false;
+
+                        if(isVerificationFree() && (sizesDocValue == null || sizesDocValue.advanceExact(doc)))
+                        {
+                            score = sizesDocValue != null ? getScoreBound(doc, null, 0) : 1.0f;
+                            return true;
+                        }
+
+                        if(!sampling)
+                            return verify(doc);
+
+                        double rate = isInSample(doc) ? sampleRate : 0;
+
+                        // the candidates outside of the sample are verified only to fill the page
+                        if(rate == 0 && (hitCount == null || hitCount.isPageFilled()))
+                            return false;
+
+                        boolean matches = verify(doc);
+
+                        if(hitCount != null)
+                            hitCount.record(rate, matches);
+
+                        return matches;
+                    }
+
+
+                    @Override
+                    public float matchCost()
+                    {
+                        return totalMatchCost;
+                    }
+                };
+            }
+
+
+            @Override
+            public int docID()
+            {
+                return approximation.docID();
+            }
+
+
+            @Override
+            public int advanceShallow(int target) throws IOException
+            {
+                if(sizesDocValue == null)
+                    return DocIdSetIterator.NO_MORE_DOCS;
+
+                int upTo = target | StructureSizes.BLOCK_SIZE - 1;
+
+                // the last block reaches to the end, so that the callers do not ask past it
+                return upTo < context.reader().maxDoc() - 1 ? upTo : DocIdSetIterator.NO_MORE_DOCS;
+            }
+
+
+            @Override
+            public float getMaxScore(int upTo) throws IOException
+            {
+                if(sizesDocValue == null)
+                    return 1.0f;
+
+                float maxScore = 0;
+                int last = Math.min(upTo, context.reader().maxDoc() - 1) >> StructureSizes.BLOCK_SHIFT;
+
+                for(int block = Math.max(docID(), 0) >> StructureSizes.BLOCK_SHIFT; block <= last; block++)
+                    maxScore = Math.max(maxScore, getBlockBound(block));
+
+                return maxScore;
+            }
+
+
+            @Override
+            public void setMinCompetitiveScore(float minScore)
+            {
+                // the skipped candidates would bias the sample
+                if(!sampling)
+                    minCompetitiveScore = minScore;
+            }
+
+
+            @Override
+            public float score() throws IOException
+            {
+                return score;
+            }
+
+
+            private float getBlockBound(int block) throws IOException
+            {
+                if(blockBounds == null)
                 {
-                    super(SingleSubstructureWeight.this);
-                    this.innerScorer = scorer;
-                    this.molDocValue = DocValues.getBinary(context.reader(), field);
+                    long[] minima = StructureSizes.getBlockMinima(context.reader(), field);
+                    blockBounds = new float[minima.length];
 
-                    this.isomorphism = new NativeIsomorphism(moleculeData, restH, searchMode, chargeMode, isotopeMode,
-                            radicalMode, stereoMode);
+                    for(int b = 0; b < minima.length; b++)
+                        for(TautomerWrapper wrapper : wrappers)
+                            blockBounds[b] = Math.max(blockBounds[b], StructureSizes.maxScore(wrapper.sizes, minima[b]));
+                }
+
+                return blockBounds[block];
+            }
+
+
+            // the best score the document gets if any of the flagged tautomers (or any at all) matches it
+            float getScoreBound(int doc, boolean[] flags, int offset) throws IOException
+            {
+                if(sizesDocValue == null || !sizesDocValue.advanceExact(doc))
+                    return Float.POSITIVE_INFINITY;
+
+                long sizes = sizesDocValue.longValue();
+                float bound = 0;
+
+                for(int t = 0; t < wrappers.length; t++)
+                    if(flags == null || flags[offset + t])
+                        bound = Math.max(bound, StructureSizes.score(wrappers[t].sizes, sizes));
+
+                return Math.max(bound, Float.MIN_VALUE);
+            }
+
+
+            private boolean verify(int doc) throws IOException
+            {
+                BytesRef ref = null;
+
+                // the tautomers are tried in their order and the first match is taken
+                for(TautomerWrapper wrapper : wrappers)
+                {
+                    if(!wrapper.isCandidate(doc))
+                        continue;
+
+                    if(ref == null)
+                    {
+                        molDocValue.advanceExact(doc);
+                        ref = molDocValue.binaryValue();
+                    }
+
+                    float value = match(wrapper.matcher, ref);
+
+                    if(!Float.isNaN(value))
+                    {
+                        score = value == 0 ? Float.MIN_VALUE : value;
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+
+            // the sample is a deterministic function of the documents, so that the pages of results are consistent
+            private boolean isInSample(int doc)
+            {
+                if(sampleRate >= 1.0)
+                    return true;
+
+                long hash = context.docBase + doc + 0x9E3779B97F4A7C15L;
+                hash = (hash ^ hash >>> 30) * 0xBF58476D1CE4E5B9L;
+                hash = (hash ^ hash >>> 27) * 0x94D049BB133111EBL;
+                hash = hash ^ hash >>> 31;
+
+                return (hash >>> 11) * 0x1.0p-53 < sampleRate;
+            }
+
+
+            // the documents indexed without sizes are still verified
+            boolean isVerificationFree()
+            {
+                return verificationFree && (sizesDocValue != null || !scoreMode.needsScores());
+            }
+
+
+            // no more candidates are verified once the budget is exhausted; it is polled once per 256 candidates
+            boolean isExhausted(int candidates)
+            {
+                if(budget != null && !exhausted && (unpolled -= candidates) < 0)
+                {
+                    exhausted = budget.isExhausted();
+                    unpolled = 256;
+                }
+
+                return exhausted;
+            }
+
+
+            boolean isCompetitive(int doc) throws IOException
+            {
+                return minCompetitiveScore == 0 || getScoreBound(doc, null, 0) >= minCompetitiveScore;
+            }
+
+
+            float match(NativeIsomorphism.Matcher matcher, BytesRef ref)
+            {
+                try
+                {
+                    float score = matcher.match(ref.bytes, ref.offset, ref.length, iterationLimit);
+
+                    if(score == Float.NEGATIVE_INFINITY)
+                        throw new RuntimeException();
+
+                    return score;
+                }
+                catch(IterationLimitExceededException e)
+                {
+                    return Float.NaN;
+                }
+            }
+
+
+            @Override
+            public TwoPhaseIterator twoPhaseIterator()
+            {
+                return twoPhaseIterator;
+            }
+
+
+            @Override
+            public DocIdSetIterator iterator()
+            {
+                return TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+            }
+
+
+            // skips the blocks of documents that cannot reach the minimal competitive score
+            class BlockBoundIterator extends DocIdSetIterator
+            {
+                private final DocIdSetIterator in;
+
+
+                BlockBoundIterator(DocIdSetIterator in)
+                {
+                    this.in = in;
+                }
+
+
+                private int competitiveTarget(int target) throws IOException
+                {
+                    if(minCompetitiveScore == 0)
+                        return target;
+
+                    int maxDoc = context.reader().maxDoc();
+
+                    while(target < maxDoc && getBlockBound(target >> StructureSizes.BLOCK_SHIFT) < minCompetitiveScore)
+                        target = (target | StructureSizes.BLOCK_SIZE - 1) + 1;
+
+                    return target < maxDoc ? target : DocIdSetIterator.NO_MORE_DOCS;
                 }
 
 
                 @Override
                 public int docID()
                 {
-                    return docID;
+                    return in.docID();
                 }
 
 
                 @Override
-                public float getMaxScore(int upTo) throws IOException
+                public int nextDoc() throws IOException
                 {
-                    return 1.0f;
+                    return advance(in.docID() + 1);
                 }
 
 
                 @Override
-                public float score() throws IOException
+                public int advance(int target) throws IOException
                 {
-                    return score;
+                    int doc = in.advance(competitiveTarget(target));
+
+                    for(int next = competitiveTarget(doc); next != doc; next = competitiveTarget(doc))
+                        doc = in.advance(next);
+
+                    return doc;
                 }
 
 
-                boolean isValid() throws IOException
+                @Override
+                public long cost()
                 {
-                    molDocValue.advanceExact(docID);
-                    BytesRef ref = molDocValue.binaryValue();
-                    byte[] target = Arrays.copyOfRange(ref.bytes, ref.offset, ref.offset + ref.length);
+                    return in.cost();
+                }
+            }
+        }
+
 
-                    try
+        class SubstructureBulkScorer extends BulkScorer
+        {
+            protected static final int maxBlockSize = NativeIsomorphism.MAX_BATCH_SIZE;
+
+            protected final SubstructureScorer scorer;
+
+            protected final int[] blockDocs = new int[maxBlockSize];
+            private final int[] blockOffsets = new int[maxBlockSize];
+            private final int[] blockLengths = new int[maxBlockSize];
+            protected final float[] blockScores = new float[maxBlockSize];
+            private ByteBuffer blockData = ByteBuffer.allocateDirect(0);
+            protected int blockSize = 0;
+            private int blockLength = 0;
+            protected int blockLimit = 1;
+
+            // block positions of the candidates of the individual tautomers
+            protected final int[][] candidates;
+            protected final int[] candidateCounts;
+            private final int[] matchPositions = new int[maxBlockSize];
+            private final int[] matchOffsets = new int[maxBlockSize];
+            private final int[] matchLengths = new int[maxBlockSize];
+            private final float[] matchScores = new float[maxBlockSize];
+
+            protected int docID = -1;
+            protected float score = 0;
+
+
+            SubstructureBulkScorer(SubstructureScorer scorer)
+            {
+                this.scorer = scorer;
+                this.candidates = new int[scorer.wrappers.length][maxBlockSize];
+                this.candidateCounts = new int[scorer.wrappers.length];
+            }
+
+
+            protected void setScorer(LeafCollector collector) throws IOException
+            {
+                collector.setScorer(new Scorable()
+                {
+                    @Override
+                    public float score()
                     {
-                        score = isomorphism.match(target, iterationLimit);
+                        return score;
+                    }
 
-                        if(score == Float.NEGATIVE_INFINITY)
-                            throw new RuntimeException();
 
-                        if(score == 0)
-                            score = Float.MIN_VALUE;
+                    @Override
+                    public int docID()
+                    {
+                        return docID;
                     }
-                    catch(IterationLimitExceededException e)
+
+
+                    @Override
+                    public void setMinCompetitiveScore(float minScore)
                     {
-                        score = Float.NaN;
+                        scorer.setMinCompetitiveScore(minScore);
                     }
+                });
+            }
 
-                    return !Float.isNaN(score);
-                }
 
+            @Override
+            public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException
+            {
+                setScorer(collector);
+
+                TautomerWrapper[] wrappers = scorer.wrappers;
+                DocIdSetIterator approximation = scorer.approximation;
+                int doc = approximation.docID();
 
-                @Override
-                public DocIdSetIterator iterator()
+                if(doc < min)
+                    doc = approximation.advance(min);
+
+                while(doc < max)
                 {
-                    DocIdSetIterator innerDocIdSetIterator = innerScorer.iterator();
+                    if(scorer.isExhausted(blockLimit))
+                        return DocIdSetIterator.NO_MORE_DOCS;
+
+                    clearBlock();
 
-                    return new DocIdSetIterator()
+                    for(; doc < max && blockSize < blockLimit; doc = approximation.nextDoc())
                     {
-                        @Override
-                        public int advance(int target) throws IOException
-                        {
-                            docID = innerDocIdSetIterator.advance(target);
+                        if(acceptDocs != null && !acceptDocs.get(doc) || !scorer.isCompetitive(doc))
+                            continue;
 
-                            if(docID != NO_MORE_DOCS && !isValid())
-                                nextDoc();
+                        boolean candidate = false;
 
-                            return docID;
+                        for(int t = 0; t < wrappers.length; t++)
+                        {
+                            if(wrappers[t].isCandidate(doc))
+                            {
+                                candidates[t][candidateCounts[t]++] = blockSize;
+                                candidate = true;
+                            }
                         }
 
+                        if(!candidate)
+                            continue;
+
+                        scorer.molDocValue.advanceExact(doc);
+                        addToBlock(doc, scorer.molDocValue.binaryValue());
+                    }
+
+                    matchBlock();
+
+                    for(int i = 0; i < blockSize; i++)
+                    {
+                        if(Float.isNaN(blockScores[i]))
+                            continue;
+
+                        docID = blockDocs[i];
+                        score = blockScores[i];
+                        collector.collect(docID);
+                    }
+
+                    blockLimit = Math.min(2 * blockLimit, maxBlockSize);
+                }
+
+                return doc;
+            }
+
+
+            protected void clearBlock()
+            {
+                blockSize = 0;
+                blockLength = 0;
+                blockData.clear();
+                Arrays.fill(candidateCounts, 0);
+            }
+
+
+            // the candidate positions of the document must be already registered
+            protected void addToBlock(int doc, BytesRef ref)
+            {
+                if(blockData.capacity() < blockLength + ref.length)
+                {
+                    int capacity = ArrayUtil.oversize(blockLength + ref.length, 1);
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+
+                    blockData.flip();
+                    buffer.put(blockData);
+                    blockData = buffer;
+                }
 
-                        @Override
-                        public int nextDoc() throws IOException
+                blockData.put(ref.bytes, ref.offset, ref.length);
+
+                blockDocs[blockSize] = doc;
+                blockOffsets[blockSize] = blockLength;
+                blockLengths[blockSize] = ref.length;
+                blockScores[blockSize] = Float.NaN;
+                blockLength += ref.length;
+                blockSize++;
+            }
+
+
+            // sets the scores of the matching documents of the block, the others are left NaN
+            protected void matchBlock()
+            {
+                TautomerWrapper[] wrappers = scorer.wrappers;
+
+                // the tautomers are tried in their order and the first match is taken
+                for(int t = 0; t < wrappers.length; t++)
+                {
+                    int count = 0;
+
+                    for(int i = 0; i < candidateCounts[t]; i++)
+                    {
+                        int position = candidates[t][i];
+
+                        if(Float.isNaN(blockScores[position]))
                         {
-                            while(true)
-                            {
-                                docID = innerDocIdSetIterator.nextDoc();
+                            matchPositions[count] = position;
+                            matchOffsets[count] = blockOffsets[position];
+                            matchLengths[count++] = blockLengths[position];
+                        }
+                    }
 
-                                if(docID == NO_MORE_DOCS || isValid())
-                                    return docID;
-                            }
+                    if(count == 0)
+                        continue;
+
+                    wrappers[t].matcher.match(blockData, matchOffsets, matchLengths, count, matchScores,
+                            iterationLimit);
+
+                    for(int i = 0; i < count; i++)
+                        blockScores[matchPositions[i]] = matchScores[i];
+                }
+
+                for(int i = 0; i < blockSize; i++)
+                    if(blockScores[i] == 0)
+                        blockScores[i] = Float.MIN_VALUE;
+            }
+
+
+            @Override
+            public long cost()
+            {
+                return scorer.approximation.cost();
+            }
+        }
+
+
+        /*
+         * Verifies the candidates of each window of the range in the descending order of their score bounds. A hit is
+         * collected as soon as no unverified competitive candidate of the window precedes it, so that the collector
+         * raises its minimal competitive score early. Only the candidates that the collector rejects are skipped.
+         */
+        class RankedBulkScorer extends SubstructureBulkScorer
+        {
+            private static final int maxWindowSize = 8 * maxBlockSize;
+
+            private final int[] docs = new int[maxWindowSize];
+            private final float[] bounds = new float[maxWindowSize];
+            private final boolean[] flags;
+            private final int[] order = new int[maxWindowSize];
+            private final int[] hitDocs = new int[maxWindowSize];
+            private final float[] hitScores = new float[maxWindowSize];
+            private int hitCount = 0;
+
+            // orders the candidate indexes by the descending bounds, the ties by the documents
+            private final IntroSorter boundSorter = new IntroSorter()
+            {
+                private int pivot;
+
+
+                @Override
+                protected void swap(int i, int j)
+                {
+                    int index = order[i];
+                    order[i] = order[j];
+                    order[j] = index;
+                }
+
+
+                @Override
+                protected void setPivot(int i)
+                {
+                    pivot = order[i];
+                }
+
+
+                @Override
+                protected int comparePivot(int j)
+                {
+                    int result = Float.compare(bounds[order[j]], bounds[pivot]);
+                    return result != 0 ? result : Integer.compare(pivot, order[j]);
+                }
+            };
+
+            // orders the hits by the documents
+            private final IntroSorter hitSorter = new IntroSorter()
+            {
+                private int pivot;
+
+
+                @Override
+                protected void swap(int i, int j)
+                {
+                    int doc = hitDocs[i];
+                    hitDocs[i] = hitDocs[j];
+                    hitDocs[j] = doc;
+
+                    float score = hitScores[i];
+                    hitScores[i] = hitScores[j];
+                    hitScores[j] = score;
+                }
+
+
+                @Override
+                protected void setPivot(int i)
+                {
+                    pivot = hitDocs[i];
+                }
+
+
+                @Override
+                protected int comparePivot(int j)
+                {
+                    return Integer.compare(pivot, hitDocs[j]);
+                }
+            };
+
+
+            RankedBulkScorer(SubstructureScorer scorer, int topK)
+            {
+                super(scorer);
+                this.flags = new boolean[maxWindowSize * scorer.wrappers.length];
+
+                // the first block holds just the most promising candidates
+                this.blockLimit = Math.min(topK, maxBlockSize);
+            }
+
+
+            @Override
+            public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException
+            {
+                setScorer(collector);
+
+                TautomerWrapper[] wrappers = scorer.wrappers;
+                DocIdSetIterator approximation = scorer.approximation;
+                int doc = approximation.docID();
+
+                if(doc < min)
+                    doc = approximation.advance(min);
+
+                while(doc < max)
+                {
+                    int count = 0;
+
+                    for(; doc < max && count < maxWindowSize; doc = approximation.nextDoc())
+                    {
+                        if(acceptDocs != null && !acceptDocs.get(doc) || !scorer.isCompetitive(doc))
+                            continue;
+
+                        boolean candidate = false;
+
+                        for(int t = 0; t < wrappers.length; t++)
+                            candidate |= flags[count * wrappers.length + t] = wrappers[t].isCandidate(doc);
+
+                        if(!candidate)
+                            continue;
+
+                        docs[count] = doc;
+                        bounds[count] = scorer.getScoreBound(doc, flags, count * wrappers.length);
+                        order[count] = count;
+                        count++;
+                    }
+
+                    boundSorter.sort(0, count);
+
+                    for(int position = 0; position < count;)
+                    {
+                        if(scorer.isExhausted(blockLimit))
+                        {
+                            collectHits(collector, DocIdSetIterator.NO_MORE_DOCS);
+                            return DocIdSetIterator.NO_MORE_DOCS;
                         }
 
+                        int end = Math.min(count, position + blockLimit);
+
+                        // the molecules of the block are read in the document order
+                        Arrays.sort(order, position, end);
+                        BinaryDocValues molecules = DocValues.getBinary(scorer.context.reader(), field);
+                        clearBlock();
 
-                        @Override
-                        public int docID()
+                        for(; position < end; position++)
                         {
-                            return docID;
+                            int index = order[position];
+
+                            if(bounds[index] < scorer.minCompetitiveScore)
+                                continue;
+
+                            for(int t = 0; t < wrappers.length; t++)
+                                if(flags[index * wrappers.length + t])
+                                    candidates[t][candidateCounts[t]++] = blockSize;
+
+                            molecules.advanceExact(docs[index]);
+                            addToBlock(docs[index], molecules.binaryValue());
                         }
 
+                        matchBlock();
 
-                        @Override
-                        public long cost()
+                        for(int i = 0; i < blockSize; i++)
                         {
-                            return innerDocIdSetIterator.cost();
+                            if(Float.isNaN(blockScores[i]))
+                                continue;
+
+                            hitDocs[hitCount] = blockDocs[i];
+                            hitScores[hitCount++] = blockScores[i];
                         }
-                    };
+
+                        int next = DocIdSetIterator.NO_MORE_DOCS;
+
+                        for(int i = position; i < count; i++)
+                            if(bounds[order[i]] >= scorer.minCompetitiveScore)
+                                next = Math.min(next, docs[order[i]]);
+
+                        collectHits(collector, next);
+                        blockLimit = Math.min(2 * blockLimit, maxBlockSize);
+                    }
+
+                    collectHits(collector, DocIdSetIterator.NO_MORE_DOCS);
+                }
+
+                return doc;
+            }
+
+
+            // collects the hits preceding the given document in the document order
+            private void collectHits(LeafCollector collector, int upTo) throws IOException
+            {
+                hitSorter.sort(0, hitCount);
+
+                int count = 0;
+
+                for(; count < hitCount && hitDocs[count] < upTo; count++)
+                {
+                    docID = hitDocs[count];
+                    score = hitScores[count];
+                    collector.collect(docID);
                 }
+
+                System.arraycopy(hitDocs, count, hitDocs, 0, hitCount - count);
+                System.arraycopy(hitScores, count, hitScores, 0, hitCount - count);
+                hitCount -= count;
             }
         }
     }
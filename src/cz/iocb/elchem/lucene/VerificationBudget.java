@@ -0,0 +1,91 @@
+package cz.iocb.elchem.lucene;
+
+import java.util.function.BooleanSupplier;
+import cz.iocb.elchem.molecule.NativeIsomorphism;
+
+
+
+/*
+ * Limits the time spent by the verification of the candidates. The budget of the current thread is taken by the
+ * queries when their weights are created; once it is exhausted, the remaining candidates are not verified and the
+ * results are partial.
+ */
+public class VerificationBudget
+{
+    private static final ThreadLocal<VerificationBudget> current = new ThreadLocal<VerificationBudget>();
+
+    private final BooleanSupplier cancellation;
+    private final NativeIsomorphism.CancelFlag flag;
+    private volatile boolean timedOut = false;
+    private volatile boolean cancelled = false;
+
+
+    // the timeout is in nanoseconds, zero or negative if there is none
+    public VerificationBudget(long timeout, BooleanSupplier cancellation)
+    {
+        this.cancellation = cancellation;
+        this.flag = new NativeIsomorphism.CancelFlag(timeout > 0 ? Math.max(System.nanoTime() + timeout, 1) : 0);
+    }
+
+
+    public static void begin(VerificationBudget budget)
+    {
+        current.set(budget);
+    }
+
+
+    public static VerificationBudget end()
+    {
+        VerificationBudget budget = current.get();
+        current.remove();
+
+        return budget;
+    }
+
+
+    public static VerificationBudget current()
+    {
+        return current.get();
+    }
+
+
+    public boolean isExhausted()
+    {
+        if(!cancelled && cancellation != null && cancellation.getAsBoolean())
+            cancelled = true;
+
+        if(!timedOut && flag.getDeadline() != 0 && System.nanoTime() - flag.getDeadline() >= 0)
+            timedOut = true;
+
+        if(cancelled || timedOut)
+            flag.raise();
+
+        return flag.isRaised();
+    }
+
+
+    // raises the shared flag at once, so that the matching running in the search threads gives up
+    public void cancel()
+    {
+        cancelled = true;
+        flag.raise();
+    }
+
+
+    public boolean isTimedOut()
+    {
+        return timedOut;
+    }
+
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+
+    NativeIsomorphism.CancelFlag getCancelFlag()
+    {
+        return flag;
+    }
+}
@@ -1,17 +1,115 @@
 package cz.iocb.elchem.molecule;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 
 public class NativeIsomorphism
 {
+    // the largest number of targets matched by one call
+    public static final int MAX_BATCH_SIZE = 256;
+
+
     @SuppressWarnings("serial")
     public static class IterationLimitExceededException extends Exception
     {
     }
 
 
+    // shared with the native matching, which gives up as soon as the flag is raised or the deadline passes
+    public static class CancelFlag
+    {
+        private final ByteBuffer state = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+        private final long deadline;
+
+
+        // the deadline is a System.nanoTime() value, or zero if there is none
+        public CancelFlag(long deadline)
+        {
+            this.deadline = deadline;
+            state.putLong(8, deadline);
+        }
+
+
+        public void raise()
+        {
+            state.putInt(0, 1);
+        }
+
+
+        public boolean isRaised()
+        {
+            return state.getInt(0) != 0;
+        }
+
+
+        public long getDeadline()
+        {
+            return deadline;
+        }
+    }
+
+
+    public class Matcher
+    {
+        /*
+         * Scratch memory for targets, (re)allocated by the native code on demand. It is left to the garbage collector
+         * deliberately: the matchers are dropped with the scorers of a segment, which have no release hook, and the
+         * arena is never larger than the memory needed by the largest target the matcher verified.
+         */
+        @SuppressWarnings("unused")
+        private ByteBuffer arena;
+
+        @SuppressWarnings("unused")
+        private ByteBuffer cancel;
+
+
+        private Matcher()
+        {
+        }
+
+
+        // a cancelled match behaves as if the iteration limit was exceeded
+        public void setCancelFlag(CancelFlag flag)
+        {
+            cancel = flag != null ? flag.state : null;
+        }
+
+
+        public float match(byte[] target, long limit) throws IterationLimitExceededException
+        {
+            return NativeIsomorphism.match(implementation, this, target, 0, target.length, limit);
+        }
+
+
+        public float match(byte[] data, int offset, int length, long limit) throws IterationLimitExceededException
+        {
+            if(offset < 0 || length < 0 || offset + length > data.length)
+                throw new IndexOutOfBoundsException();
+
+            return NativeIsomorphism.match(implementation, this, data, offset, length, limit);
+        }
+
+
+        // the targets are given by their offsets and lengths in the buffer
+        public void match(ByteBuffer data, int[] offsets, int[] lengths, int count, float[] scores, long limit)
+        {
+            if(!data.isDirect())
+                throw new IllegalArgumentException("direct buffer required");
+
+            if(count > MAX_BATCH_SIZE)
+                throw new IllegalArgumentException("too many targets in a batch");
+
+            if(count < 0 || count > offsets.length || count > lengths.length || count > scores.length)
+                throw new IndexOutOfBoundsException();
+
+            matchBatch(implementation, this, data, offsets, lengths, count, scores, limit);
+        }
+    }
+
+
+    // compiled query, never modified by the matching and therefore shareable between threads
     private final ByteBuffer implementation;
 
 
@@ -23,15 +121,17 @@ public class NativeIsomorphism
     }
 
 
-    public float match(byte[] query, long limit) throws IterationLimitExceededException
+    public Matcher matcher()
     {
-        return match(implementation, query, limit);
+        return new Matcher();
     }
 
 
-    private static native float match(ByteBuffer implementation, byte[] query, long limit)
-            throws IterationLimitExceededException;
+    private static native float match(ByteBuffer implementation, Matcher matcher, byte[] data, int offset,
+            int length, long limit) throws IterationLimitExceededException;
 
+    private static native void matchBatch(ByteBuffer implementation, Matcher matcher, ByteBuffer data,
+            int[] offsets, int[] lengths, int count, float[] scores, long limit);
 
     private static native ByteBuffer create(byte[] query, boolean[] restH, int searchMode, int chargeMode,
             int isotopeMode, int radicalMode, int stereoMode);
@@ -0,0 +1,298 @@
+package cz.iocb.elchem.lucene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.lucene.util.BytesRef;
+
+
+
+/*
+ * Checks that the fingerprints written in any of the encodings are read back unchanged, including the legacy ones
+ * written before the encoding got its version, and that the folded bits never reject a similar enough fingerprint.
+ */
+public class SimilarityFingerprintTest
+{
+    private static final Random random = new Random(42);
+
+    private static final SimilarityMetric[] metrics = { SimilarityMetric.TANIMOTO, SimilarityMetric.DICE,
+            SimilarityMetric.tversky(0.9f, 0.1f), SimilarityMetric.tversky(0.1f, 0.9f),
+            SimilarityMetric.tversky(0, 1) };
+
+
+    public static void main(String[] args) throws Exception
+    {
+        List<List<List<Integer>>> fingerprints = new ArrayList<List<List<Integer>>>();
+
+        fingerprints.add(fingerprint(new int[] { 0 }, 1));
+        fingerprints.add(fingerprint(new int[] { 0, 0, 0, 0 }, 1));
+        fingerprints.add(fingerprint(new int[] { 1, 0, 1, 0 }, 1));
+
+        for(int i = 0; i < 1000; i++)
+            fingerprints.add(randomFingerprint());
+
+        for(List<List<Integer>> fp : fingerprints)
+        {
+            checkRoundTrip(fp, SimilarityFingerprint.encode(fp), SimilarityFingerprint.FORMAT_VERSION);
+            checkRoundTrip(fp, encodeUnfolded(fp), SimilarityFingerprint.UNFOLDED_VERSION);
+            checkRoundTrip(fp, encodeLegacy(fp), SimilarityFingerprint.LEGACY_VERSION);
+        }
+
+        checkRejected();
+
+        for(int i = 0; i < 20000; i++)
+        {
+            List<List<Integer>> query = randomFingerprint();
+            checkFoldedBound(query, i % 2 == 0 ? randomFingerprint() : perturb(query));
+        }
+    }
+
+
+    // the bound of the shared features taken from the folded bits must hold for any number of the leading segments
+    private static void checkFoldedBound(List<List<Integer>> query, List<List<Integer>> target) throws IOException
+    {
+        int[][] flattened = SimilarityFingerprint.flatten(query);
+        int[] queryValues = flattened[0];
+        int[] queryBounds = flattened[1];
+        long[] queryFolded = SimilarityFingerprint.fold(queryValues, queryBounds);
+
+        for(int segments = 1; segments <= Math.min(query.size(), target.size()); segments++)
+        {
+            SimilarityFingerprint.Decoder decoder = new SimilarityFingerprint.Decoder(segments);
+            decoder.read(new BytesRef(SimilarityFingerprint.encode(target)));
+
+            int[] bounds = Arrays.copyOf(queryBounds, segments + 1);
+            int maxShared = decoder.getMaxShared(queryFolded, bounds);
+            int[] values = decoder.getValues();
+            int shared = 0;
+
+            for(int i = 0; i < segments; i++)
+            {
+                int segmentShared = SimilarityFingerprint.intersect(queryValues, bounds[i], bounds[i + 1], values,
+                        decoder.getBound(i), decoder.getBound(i + 1));
+
+                if(segmentShared != countShared(query.get(i), target.get(i)))
+                    throw new AssertionError("wrong number of shared features");
+
+                shared += segmentShared;
+            }
+
+            if(maxShared < shared)
+                throw new AssertionError("the folded bits allow " + maxShared + " shared features, but " + shared
+                        + " are shared");
+
+            int querySize = bounds[segments];
+            int targetSize = decoder.size();
+
+            if(querySize == 0)
+                continue;
+
+            for(SimilarityMetric metric : metrics)
+            {
+                float similarity = metric.similarity(shared, querySize, targetSize);
+                float bound = metric.similarity(maxShared, querySize, targetSize);
+
+                // the candidate is rejected if its bound is below the threshold, so the similarity must not exceed it
+                if(bound < similarity)
+                    throw new AssertionError(metric + ": the folded bound " + bound + " rejects the similarity "
+                            + similarity);
+            }
+        }
+    }
+
+
+    private static int countShared(List<Integer> a, List<Integer> b)
+    {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        int shared = 0;
+
+        for(int value : a)
+            counts.merge(value, 1, Integer::sum);
+
+        for(int value : b)
+        {
+            Integer count = counts.get(value);
+
+            if(count != null && count > 0)
+            {
+                counts.put(value, count - 1);
+                shared++;
+            }
+        }
+
+        return shared;
+    }
+
+
+    // a similar fingerprint with some features dropped, added or duplicated
+    private static List<List<Integer>> perturb(List<List<Integer>> fp)
+    {
+        List<List<Integer>> result = new ArrayList<List<Integer>>(fp.size());
+
+        for(List<Integer> segment : fp)
+        {
+            List<Integer> perturbed = new ArrayList<Integer>(segment.size());
+
+            for(int value : segment)
+            {
+                int action = random.nextInt(10);
+
+                if(action != 0)
+                    perturbed.add(value);
+
+                if(action == 1)
+                    perturbed.add(value);
+
+                if(action == 2)
+                    perturbed.add(random.nextInt());
+            }
+
+            Collections.sort(perturbed);
+            result.add(perturbed);
+        }
+
+        return result;
+    }
+
+
+    private static void checkRoundTrip(List<List<Integer>> fp, byte[] data, int version) throws IOException
+    {
+        // the doc values do not have to start at the beginning of the array
+        byte[] shifted = new byte[data.length + 7];
+        System.arraycopy(data, 0, shifted, 3, data.length);
+        BytesRef ref = new BytesRef(shifted, 3, data.length);
+
+        for(int segments = 1; segments <= fp.size(); segments++)
+        {
+            SimilarityFingerprint.Decoder decoder = new SimilarityFingerprint.Decoder(segments);
+            decoder.read(ref);
+
+            check(decoder.hasFoldedBits() == (version >= SimilarityFingerprint.FORMAT_VERSION), version,
+                    "folded bits presence");
+
+            int[] values = decoder.getValues();
+
+            for(int i = 0; i < segments; i++)
+            {
+                List<Integer> segment = fp.get(i);
+                int from = decoder.getBound(i);
+
+                check(decoder.getBound(i + 1) - from == segment.size(), version, "segment size");
+
+                for(int j = 0; j < segment.size(); j++)
+                    check(values[from + j] == segment.get(j), version, "feature value");
+            }
+
+            check(decoder.size() == decoder.getBound(segments), version, "fingerprint size");
+        }
+    }
+
+
+    private static void checkRejected() throws IOException
+    {
+        List<List<Integer>> fp = fingerprint(new int[] { 3, 2 }, 1);
+
+        try
+        {
+            new SimilarityFingerprint.Decoder(3).read(new BytesRef(SimilarityFingerprint.encode(fp)));
+            throw new AssertionError("missing segments not detected");
+        }
+        catch(IOException e)
+        {
+        }
+
+        byte[] data = SimilarityFingerprint.encode(fp);
+        data[3] = SimilarityFingerprint.FORMAT_VERSION + 1;
+
+        try
+        {
+            new SimilarityFingerprint.Decoder(1).read(new BytesRef(data));
+            throw new AssertionError("unknown version not detected");
+        }
+        catch(IOException e)
+        {
+        }
+    }
+
+
+    private static void check(boolean condition, int version, String message)
+    {
+        if(!condition)
+            throw new AssertionError("version " + version + ": wrong " + message);
+    }
+
+
+    // the encoding of the first version, without the folded bits
+    private static byte[] encodeUnfolded(List<List<Integer>> fp)
+    {
+        int size = fp.stream().map(i -> i.size()).reduce(0, Integer::sum);
+        ByteBuffer buffer = ByteBuffer.allocate((1 + fp.size() + size) * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(SimilarityFingerprint.UNFOLDED_VERSION << 24 | fp.size());
+
+        for(List<Integer> segment : fp)
+            buffer.putInt(segment.size());
+
+        for(List<Integer> segment : fp)
+            for(int bit : segment)
+                buffer.putInt(bit);
+
+        return buffer.array();
+    }
+
+
+    // the encoding written by the field mapper before the format got its version
+    private static byte[] encodeLegacy(List<List<Integer>> fp)
+    {
+        byte[] array = new byte[fp.stream().map(i -> i.size() + 1).reduce(0, Integer::sum) * Integer.BYTES];
+
+        for(int pos = 0, i = 0; i < fp.size(); i++)
+        {
+            for(int b = 0; b < Integer.BYTES; b++)
+                array[pos++] = (byte) (fp.get(i).size() >> (8 * b));
+
+            for(int bit : fp.get(i))
+                for(int b = 0; b < Integer.BYTES; b++)
+                    array[pos++] = (byte) (bit >> (8 * b));
+        }
+
+        return array;
+    }
+
+
+    private static List<List<Integer>> randomFingerprint()
+    {
+        int[] sizes = new int[1 + random.nextInt(4)];
+
+        for(int i = 0; i < sizes.length; i++)
+            sizes[i] = random.nextInt(4) == 0 ? 0 : random.nextInt(80);
+
+        // the features of the small ranges repeat
+        return fingerprint(sizes, random.nextBoolean() ? 16 : Integer.MAX_VALUE);
+    }
+
+
+    private static List<List<Integer>> fingerprint(int[] sizes, int range)
+    {
+        List<List<Integer>> fp = new ArrayList<List<Integer>>(sizes.length);
+
+        for(int size : sizes)
+        {
+            List<Integer> segment = new ArrayList<Integer>(size);
+
+            for(int i = 0; i < size; i++)
+                segment.add(range == Integer.MAX_VALUE ? random.nextInt() : random.nextInt(range) - range / 2);
+
+            Collections.sort(segment);
+            fp.add(segment);
+        }
+
+        return fp;
+    }
+}
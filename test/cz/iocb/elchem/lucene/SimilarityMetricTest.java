@@ -0,0 +1,116 @@
+package cz.iocb.elchem.lucene;
+
+
+
+/*
+ * Checks the size limits of the similarity metrics against the similarities of all small fingerprint sizes, as the
+ * screening of the similarity search must never drop a document reaching the threshold.
+ */
+public class SimilarityMetricTest
+{
+    private static final SimilarityMetric[] metrics = { SimilarityMetric.TANIMOTO, SimilarityMetric.DICE,
+            SimilarityMetric.tversky(1, 1), SimilarityMetric.tversky(0.5f, 0.5f), SimilarityMetric.tversky(0.9f, 0.1f),
+            SimilarityMetric.tversky(0.1f, 0.9f), SimilarityMetric.tversky(0.3f, 0.7f), SimilarityMetric.tversky(1, 0),
+            SimilarityMetric.tversky(0, 1), SimilarityMetric.tversky(2, 0.5f) };
+
+    private static final int maxQuerySize = 48;
+    private static final int maxTargetSize = 160;
+
+
+    public static void main(String[] args)
+    {
+        float[] thresholds = new float[24];
+
+        for(int i = 0; i < 20; i++)
+            thresholds[i] = (i + 1) / 20.0f;
+
+        thresholds[20] = 1 / 3.0f;
+        thresholds[21] = 2 / 3.0f;
+        thresholds[22] = 0.01f;
+        thresholds[23] = 0.999f;
+
+        for(SimilarityMetric metric : metrics)
+        {
+            checkMonotonicity(metric);
+
+            for(float threshold : thresholds)
+                checkLimits(metric, threshold);
+        }
+    }
+
+
+    // the bounds are computed by the metric itself, so it must grow with the shared features towards the query size
+    private static void checkMonotonicity(SimilarityMetric metric)
+    {
+        for(int query = 1; query <= maxQuerySize; query++)
+        {
+            float previousMax = 0;
+
+            for(int target = 0; target <= maxTargetSize; target++)
+            {
+                float previous = 0;
+
+                for(int shared = 0; shared <= Math.min(query, target); shared++)
+                {
+                    float similarity = metric.similarity(shared, query, target);
+
+                    check(similarity >= previous, metric, "similarity decreases with the shared features", query,
+                            target, shared);
+                    check(similarity >= 0 && similarity <= 1, metric, "similarity out of range", query, target,
+                            shared);
+                    check(similarity <= metric.maxSimilarity(query, target), metric, "maximal similarity exceeded",
+                            query, target, shared);
+
+                    previous = similarity;
+                }
+
+                float max = metric.maxSimilarity(query, target);
+
+                if(target <= query)
+                    check(max >= previousMax, metric, "maximal similarity decreases below the query size", query,
+                            target, 0);
+                else
+                    check(max <= previousMax, metric, "maximal similarity increases above the query size", query,
+                            target, 0);
+
+                previousMax = max;
+            }
+        }
+    }
+
+
+    private static void checkLimits(SimilarityMetric metric, float threshold)
+    {
+        for(int query = 1; query <= maxQuerySize; query++)
+        {
+            int minTarget = metric.minTargetSize(query, threshold);
+            int maxTarget = metric.maxTargetSize(query, threshold);
+            int maxMissing = metric.maxMissingFeatures(query, threshold);
+
+            for(int target = 0; target <= maxTargetSize; target++)
+            {
+                for(int shared = 0; shared <= Math.min(query, target); shared++)
+                {
+                    if(metric.similarity(shared, query, target) < threshold)
+                        continue;
+
+                    check(target >= minTarget, metric, "target below the minimal size at " + threshold, query,
+                            target, shared);
+                    check(target <= maxTarget, metric, "target above the maximal size at " + threshold, query,
+                            target, shared);
+                    check(query - shared <= maxMissing, metric, "too many missing features at " + threshold, query,
+                            target, shared);
+                }
+            }
+        }
+    }
+
+
+    private static void check(boolean condition, SimilarityMetric metric, String message, int query, int target,
+            int shared)
+    {
+        if(!condition)
+            throw new AssertionError(metric + ": " + message + " for the query size " + query + ", the target size "
+                    + target + " and " + shared + " shared features");
+    }
+}
@@ -0,0 +1,111 @@
+package cz.iocb.elchem.lucene;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import cz.iocb.elchem.lucene.SubstructureQuery.CompiledQuery;
+import cz.iocb.elchem.lucene.SubstructureQuery.CompiledTautomer;
+import cz.iocb.elchem.molecule.AromaticityMode;
+import cz.iocb.elchem.molecule.BinaryMolecule;
+import cz.iocb.elchem.molecule.BinaryMoleculeBuilder;
+import cz.iocb.elchem.molecule.ChargeMode;
+import cz.iocb.elchem.molecule.InChITools.InChIException;
+import cz.iocb.elchem.molecule.IsotopeMode;
+import cz.iocb.elchem.molecule.MoleculeCreator;
+import cz.iocb.elchem.molecule.NativeIsomorphism;
+import cz.iocb.elchem.molecule.QueryFormat;
+import cz.iocb.elchem.molecule.RadicalMode;
+import cz.iocb.elchem.molecule.SearchMode;
+import cz.iocb.elchem.molecule.StereoMode;
+import cz.iocb.elchem.molecule.TautomerMode;
+
+
+
+/*
+ * Checks that the scores computed from the indexed sizes are the ones of the native matching, which the score
+ * bounds of the substructure search rely on.
+ */
+public class StructureSizesTest
+{
+    private static final String[] targets = { "C", "O", "[H][H]", "[2H]C([2H])([2H])[2H]", "CCO", "[H]OC([H])([H])C",
+            "c1ccccc1", "Cc1ccccc1", "Oc1ccccc1", "CC(=O)Oc1ccccc1C(=O)O", "CN1C=NC2=C1C(=O)N(C(=O)N2C)C",
+            "OC(=O)CC(O)(CC(O)=O)C(O)=O", "C[N+](C)(C)C", "[NH4+].[Cl-]", "[O-]C(=O)C.[Na+]", "C1CCNCC1",
+            "Oc1ccccn1", "O=c1cccc[nH]1", "N[C@@H](C)C(=O)O", "C/C=C/C", "ClC(Cl)(Cl)Cl", "OCC(O)CO",
+            "[13CH4]", "C=CC=C", "C#N", "[H]N([H])C(=O)N([H])[H]", "c1ccc2ccccc2c1", "OC1OC(CO)C(O)C(O)C1O" };
+
+    private static final String[] queries = { "C", "O", "N", "[H]", "[H]O", "[H]C([H])([H])", "[2H]", "CO", "CCO",
+            "C=O", "c1ccccc1", "C(=O)O", "[OH]", "[NH3+]", "[O-]", "Cl", "CC", "C1CCNCC1", "n1ccccc1", "[13C]" };
+
+
+    public static void main(String[] args) throws Exception
+    {
+        System.loadLibrary("elchem");
+
+        byte[][] binaries = new byte[targets.length][];
+        long[] sizes = new long[targets.length];
+
+        for(int i = 0; i < targets.length; i++)
+        {
+            binaries[i] = asBinary(targets[i]);
+            sizes[i] = StructureSizes.getSizes(new BinaryMolecule(binaries[i]));
+        }
+
+        int matches = 0;
+
+        for(SearchMode searchMode : SearchMode.values())
+        {
+            for(String query : searchMode == SearchMode.EXACT ? targets : queries)
+            {
+                CompiledQuery compiled = SubstructureQuery.compile(query, QueryFormat.SMILES, searchMode,
+                        ChargeMode.DEFAULT_AS_ANY, IsotopeMode.IGNORE, RadicalMode.IGNORE, StereoMode.IGNORE,
+                        AromaticityMode.AUTO, TautomerMode.IGNORE);
+
+                for(CompiledTautomer tautomer : compiled.getTautomers())
+                {
+                    NativeIsomorphism.Matcher matcher = tautomer.getIsomorphism(searchMode, ChargeMode.DEFAULT_AS_ANY,
+                            IsotopeMode.IGNORE, RadicalMode.IGNORE, StereoMode.IGNORE).matcher();
+                    long querySizes = StructureSizes.getSizes(new BinaryMolecule(tautomer.getMolecule()));
+
+                    for(int i = 0; i < targets.length; i++)
+                    {
+                        float score = matcher.match(binaries[i], 0);
+
+                        if(Float.isNaN(score))
+                            continue;
+
+                        float expected = StructureSizes.score(querySizes, sizes[i]);
+
+                        if(score != expected)
+                            throw new AssertionError(searchMode + " " + query + " on " + targets[i] + ": native score "
+                                    + score + ", computed " + expected);
+
+                        if(StructureSizes.maxScore(querySizes, sizes[i]) < score)
+                            throw new AssertionError(searchMode + " " + query + " on " + targets[i] + ": bound "
+                                    + StructureSizes.maxScore(querySizes, sizes[i]) + " below score " + score);
+
+                        matches++;
+                    }
+                }
+            }
+        }
+
+        if(matches < targets.length + queries.length)
+            throw new AssertionError("too few matches compared: " + matches);
+    }
+
+
+    // the targets are stored as by the structure field mapper
+    private static byte[] asBinary(String smiles) throws Exception
+    {
+        IAtomContainer container;
+
+        try
+        {
+            container = MoleculeCreator.translateMolecule(smiles, AromaticityMode.AUTO, true);
+        }
+        catch(InChIException e)
+        {
+            container = MoleculeCreator.translateMolecule(smiles, AromaticityMode.AUTO, false);
+        }
+
+        return BinaryMoleculeBuilder.asBytes(container, true);
+    }
+}
@@ -0,0 +1,148 @@
+package cz.iocb.elchem.lucene;
+
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import cz.iocb.elchem.fingerprint.IOCBFingerprint;
+import cz.iocb.elchem.molecule.AromaticityMode;
+import cz.iocb.elchem.molecule.BinaryMolecule;
+import cz.iocb.elchem.molecule.BinaryMoleculeBuilder;
+import cz.iocb.elchem.molecule.ChargeMode;
+import cz.iocb.elchem.molecule.InChITools.InChIException;
+import cz.iocb.elchem.molecule.IsotopeMode;
+import cz.iocb.elchem.molecule.MoleculeCreator;
+import cz.iocb.elchem.molecule.QueryFormat;
+import cz.iocb.elchem.molecule.RadicalMode;
+import cz.iocb.elchem.molecule.SearchMode;
+import cz.iocb.elchem.molecule.StereoMode;
+import cz.iocb.elchem.molecule.TautomerMode;
+
+
+
+/*
+ * Checks the exact and the capped counts of the substructure query against the hits of a full search, over several
+ * segments with deleted documents, both sequentially and with the segments counted in parallel.
+ */
+public class SubstructureCountTest
+{
+    private static final String FIELD = "structure";
+
+    private static final String[] targets = { "C", "O", "CCO", "[H]OC([H])([H])C", "c1ccccc1", "Cc1ccccc1",
+            "Oc1ccccc1", "CC(=O)Oc1ccccc1C(=O)O", "CN1C=NC2=C1C(=O)N(C(=O)N2C)C", "OC(=O)CC(O)(CC(O)=O)C(O)=O",
+            "C[N+](C)(C)C", "[NH4+].[Cl-]", "[O-]C(=O)C.[Na+]", "C1CCNCC1", "Oc1ccccn1", "N[C@@H](C)C(=O)O",
+            "C/C=C/C", "ClC(Cl)(Cl)Cl", "OCC(O)CO", "C=CC=C", "C#N", "c1ccc2ccccc2c1", "OC1OC(CO)C(O)C(O)C1O" };
+
+    private static final String[] queries = { "C", "O", "CO", "CCO", "C=O", "c1ccccc1", "C(=O)O", "N", "Cl", "CC",
+            "C1CCNCC1", "[Na+]", "S" };
+
+
+    public static void main(String[] args) throws Exception
+    {
+        System.loadLibrary("elchem");
+
+        ByteBuffersDirectory directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig().setMergePolicy(NoMergePolicy.INSTANCE);
+
+        try(IndexWriter writer = new IndexWriter(directory, config))
+        {
+            for(int copy = 0; copy < 4; copy++)
+            {
+                for(int i = 0; i < targets.length; i++)
+                    writer.addDocument(asDocument(copy + "-" + i, targets[i]));
+
+                writer.commit();
+            }
+
+            // the counts skip the deleted documents as the search does
+            for(int i = 0; i < targets.length; i += 3)
+                writer.deleteDocuments(new Term("id", "1-" + i));
+
+            writer.commit();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try(DirectoryReader reader = DirectoryReader.open(directory))
+        {
+            if(reader.leaves().size() < 2)
+                throw new AssertionError("too few segments: " + reader.leaves().size());
+
+            IndexSearcher sequential = new IndexSearcher(reader);
+            IndexSearcher parallel = new IndexSearcher(reader, executor);
+
+            for(String smiles : queries)
+            {
+                SubstructureQuery query = new SubstructureQuery(FIELD, smiles, QueryFormat.SMILES,
+                        SearchMode.SUBSTRUCTURE, ChargeMode.DEFAULT_AS_ANY, IsotopeMode.IGNORE, RadicalMode.IGNORE,
+                        StereoMode.IGNORE, AromaticityMode.AUTO, TautomerMode.IGNORE, 0);
+
+                int expected = sequential.search(query, reader.maxDoc()).scoreDocs.length;
+
+                for(IndexSearcher searcher : new IndexSearcher[] { sequential, parallel })
+                {
+                    check(smiles, 0, expected, query.count(searcher, 0));
+
+                    for(long cap : new long[] { 1, expected / 2, expected, expected + 1 })
+                        if(cap > 0)
+                            check(smiles, cap, Math.min(cap, expected), query.count(searcher, cap));
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+
+    private static void check(String query, long cap, long expected, long count)
+    {
+        if(count != expected)
+            throw new AssertionError(query + " with cap " + cap + ": count " + count + ", expected " + expected);
+    }
+
+
+    // the targets are indexed as by the structure field mapper
+    private static Document asDocument(String id, String smiles) throws Exception
+    {
+        IAtomContainer container;
+
+        try
+        {
+            container = MoleculeCreator.translateMolecule(smiles, AromaticityMode.AUTO, true);
+        }
+        catch(InChIException e)
+        {
+            container = MoleculeCreator.translateMolecule(smiles, AromaticityMode.AUTO, false);
+        }
+
+        byte[] binary = BinaryMoleculeBuilder.asBytes(container, true);
+        BinaryMolecule molecule = new BinaryMolecule(binary);
+        Set<Integer> fp = IOCBFingerprint.getSubstructureFingerprint(molecule);
+
+        Document document = new Document();
+        document.add(new StringField("id", id, StringField.Store.NO));
+        document.add(new StoredField(FIELD, binary));
+        document.add(new BinaryDocValuesField(FIELD, new BytesRef(binary)));
+        document.add(new TextField(FIELD, new FingerprintTokenStream(fp)));
+        document.add(StructureCounts.createField(FIELD, molecule));
+        document.add(StructureHash.createField(FIELD, molecule));
+        document.add(StructureSizes.createField(FIELD, molecule));
+
+        return document;
+    }
+}